@@ -0,0 +1,99 @@
+/* This class is the book of all the instruments (currency pairs) of the application. Every
+ * instrument has its own CurrencyValue and is updated in the order the middleware delivers the
+ * updates of that instrument. The instruments do not depend on each other.
+ * For snapshots the book is saved as one array holding the (sell, buy) pair of every instrument.
+ * The updates are numbered over all the instruments, in the order they are applied. Other threads
+ * can read any instrument at any time with read(), see CurrencyValue.
+ */
+
+import middleware.*;
+
+public class CurrencyBook {
+
+	private CurrencyValue[] values;
+	private long updateCount;		// updates applied to all the instruments together
+
+
+
+	public CurrencyBook (int instruments, LogWriter l) {
+		values = new CurrencyValue[instruments];
+		for (int i = 0; i < instruments; i++) {
+			/* with a single instrument the log looks the way it always did */
+			values[i] = instruments == 1 ? new CurrencyValue(l) : new CurrencyValue(l, i);
+		}
+		updateCount = 0;
+	}
+
+
+
+
+
+	/* updateValue: Applies a delivered update to the value of its instrument. parts are the
+	 * deltas of a coalesced update (null if it is not one), for the log.
+	 */
+	public void updateValue (int instrument, int update[], int parts[], long t, int pid) {
+		values[instrument].updateValue(update, parts, t, pid, updateCount);
+		updateCount++;
+	}
+
+	/* replayValue: Applies an update recovered from the update log */
+	public void replayValue (int instrument, int update[], long t, int pid) {
+		values[instrument].replayValue(update, t, pid, updateCount);
+		updateCount++;
+	}
+
+
+
+
+
+	/* getState and restore: The (sell, buy) pairs of all the instruments, one after the other.
+	 * restore() returns false if the state is not one of a book of this size.
+	 */
+	public int[] getState () {
+		int[] state = new int[2 * values.length];
+		for (int i = 0; i < values.length; i++) {
+			int[] v = values[i].getValue();
+			state[2 * i] = v[0];
+			state[2 * i + 1] = v[1];
+		}
+		return state;
+	}
+
+	public boolean restore (int[] state, long count, long t) {
+		if (state.length != 2 * values.length) {
+			return false;
+		}
+		for (int i = 0; i < values.length; i++) {
+			int[] v = new int[2];
+			v[0] = state[2 * i];
+			v[1] = state[2 * i + 1];
+			values[i].restore(v, count, t);
+		}
+		updateCount = count;
+		return true;
+	}
+
+
+
+
+
+	/* Pretty much self-explanatory methods */
+
+	public int size () {
+		return values.length;
+	}
+
+	public CurrencyValue get (int instrument) {
+		return values[instrument];
+	}
+
+	/* read: A consistent reading of one instrument, from any thread, see CurrencyValue.read() */
+	public void read (int instrument, CurrencyValue.Snapshot s) {
+		values[instrument].read(s);
+	}
+
+	/* getUpdateCount: Number of updates applied so far, which is the index of the last one in the update log */
+	public long getUpdateCount () {
+		return updateCount;
+	}
+}
@@ -1,49 +1,167 @@
 /* This class is for the currency value which is initialized to (100,100). 
  * This class provides methods like updateValue() and getValue() which update the 
  * currency value by given delta and get the current currency value respectively.
+ * After a restart, restore() and replayValue() bring back the value from the update log.
+ * A coalesced update is applied at once and logged with the updates it was merged from.
+ * There is one of these for every instrument in the CurrencyBook.
+ * The value is written by the application thread only, but may be read by any number of other
+ * threads. Writes go through a sequence lock: the version is odd while a write is in progress and
+ * moves on by two with every write. read() copies (sell, buy, logical time, sequence number) into
+ * a Snapshot of the caller and tries again if the version changed meanwhile, so readers never take
+ * a lock, never allocate and never see a half written tuple. They never hold up the writer either.
  */
 
 import middleware.*;
 
+import java.lang.invoke.VarHandle;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
 
 public class CurrencyValue {
 
+	/* One consistent reading of the value. A reader keeps one and passes it to read() again and again. */
+	public static class Snapshot {
+		public int sell;
+		public int buy;
+		public long time;		// logical time of the last update applied, -1 if there was none
+		public int pid;			// and the process which sent it
+		public long seq;		// number of updates applied to the book when it was applied
+	}
+
+	// written by the application thread only, between beginWrite() and endWrite()
 	private int sellRate;
 	private int buyRate;
+	private long time;
+	private int pid;
+	private long updateCounter;
+	private volatile long version;		// odd while a write is in progress
 	private LogWriter logger;
-	private static int updateCounter;
+	private String label;			// which instrument, for the log
 
 	public CurrencyValue (LogWriter l) {
 		this.buyRate = 100;
 		this.sellRate = 100;
+		time = -1;
+		pid = -1;
 		logger = l;
+		label = "";
 		updateCounter = 0;
+		version = 0;
+	}
+
+	public CurrencyValue (LogWriter l, int instrument) {
+		this(l);
+		label = " of I" + instrument;
 	}
 
-	public void updateValue (int update[], double t) {
+	public void updateValue (int update[], long t, int pid) {
+		updateValue(update, null, t, pid);
+	}
+
+	/* updateValue: parts are the deltas of a coalesced update, two values each (null if it is not one) */
+	public void updateValue (int update[], int parts[], long t, int pid) {
+		updateValue(update, parts, t, pid, updateCounter);
+	}
+
+	/* updateValue: seq is the number of updates the book applied before this one, which is what
+	 * the log shows as OP. The book counts over all the instruments.
+	 */
+	public void updateValue (int update[], int parts[], long t, int pid, long seq) {
 		if (update.length != 2) {
 			System.err.println(getTimestamp() + "[ERROR] Received " + update.length + " values to update");
 			return;
 		}
+		beginWrite();
 		sellRate += update[0];
 		buyRate += update[1];
+		time = t;
+		this.pid = pid;
+		updateCounter = seq + 1;
+		endWrite();
 		//System.out.println(getTimestamp() + "[App-currency] Currency value is set to (" + sellRate + "," + buyRate + ") by (" + update[0] + "," + update[1] + ")");
-		//logger.log("[App-currency][OP" + updateCounter + " : C" + t + "] Currency value is set to (" + sellRate + "," + buyRate + ") by (" + update[0] + "," + update[1] + ")");
-		logger.log("[OP" + updateCounter + " : C" + t + "] Currency value is set to (" + sellRate + "," + buyRate + ") by (" + update[0] + "," + update[1] + ")");
-		updateCounter++;
+		//logger.log("[App-currency][OP" + seq + " : C" + t + "] Currency value is set to (" + sellRate + "," + buyRate + ") by (" + update[0] + "," + update[1] + ")");
+		logger.log("[OP" + seq + " : C" + LogicalClock.format(t, pid) + "] Currency value" + label + " is set to (" + sellRate + "," + buyRate + ") by (" + update[0] + "," + update[1] + ")" + describeParts(parts));
 		return;
 	}
 
+	/* restore: Sets the value saved in a snapshot taken after 'count' updates at logical time t */
+	public void restore (int[] value, long count, long t) {
+		beginWrite();
+		sellRate = value[0];
+		buyRate = value[1];
+		time = t;
+		pid = -1;			// the snapshot does not know
+		updateCounter = count;
+		endWrite();
+	}
+
+	/* replayValue: Applies an update recovered from the log. It was logged when it was first applied. */
+	public void replayValue (int update[], long t, int pid, long seq) {
+		beginWrite();
+		sellRate += update[0];
+		buyRate += update[1];
+		time = t;
+		this.pid = pid;
+		updateCounter = seq + 1;
+		endWrite();
+	}
+
+	/* describeParts: Who contributed what to a coalesced update, for the log */
+	private String describeParts (int parts[]) {
+		if (parts == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder(" from " + parts.length / 2 + " updates");
+		for (int i = 0; i + 1 < parts.length; i += 2) {
+			sb.append(" (").append(parts[i]).append(",").append(parts[i + 1]).append(")");
+		}
+		return sb.toString();
+	}
+
+	/* getValue: The (sell, buy) pair in a new array. Readers on the hot path should use read(). */
 	public int[] getValue () {
+		Snapshot s = new Snapshot();
+		read(s);
 		int[] currVal = new int[2];
-		currVal[0] = sellRate;
-		currVal[1] = buyRate;
+		currVal[0] = s.sell;
+		currVal[1] = s.buy;
 		return currVal;
 	}
 
+	/* read: Copies a consistent (sell, buy, time, pid, seq) into s. Any thread can call it. It
+	 * tries again only if a write was in progress, which takes a few nanoseconds.
+	 */
+	public void read (Snapshot s) {
+		while (true) {
+			long v = version;
+			if ((v & 1) == 0) {
+				s.sell = sellRate;
+				s.buy = buyRate;
+				s.time = time;
+				s.pid = pid;
+				s.seq = updateCounter;
+				VarHandle.loadLoadFence();	// the fields are read before the version is checked again
+				if (version == v) {
+					return;
+				}
+			}
+			Thread.onSpinWait();
+		}
+	}
+
+	/* beginWrite and endWrite: Around every change of the fields. The fence keeps the writes to the
+	 * fields after the odd version; the volatile write of the even one keeps them before it.
+	 */
+	private void beginWrite () {
+		version = version + 1;
+		VarHandle.storeStoreFence();
+	}
+
+	private void endWrite () {
+		version = version + 1;
+	}
+
 
 	private String getTimestamp() {
 		Date date = new Date();
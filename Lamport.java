@@ -1,24 +1,33 @@
-/* This class is the main application thread. It gets an object of currency value. 
- * It also starts the thread for the distribution layer (middleware). 
- * It then runs a loop where it generates random currency update and passes the 
- * message to the middleware. It also polls for the messages passed to it by the 
- * middleware and performs updates in those messages to the currency value.
+/* This class is the main application thread. It gets a book of currency values, one for
+ * every instrument. It also starts the thread for the distribution layer (middleware). 
+ * It then runs a loop where it generates random currency update for a random instrument and passes the 
+ * message to the middleware. It also takes the batches of messages delivered by the 
+ * middleware and performs updates in those messages to the currency values.
+ * Started with "rejoin" after the config file, it comes back into a cluster which kept running
+ * without it: the middleware gets the state of the cluster into the update log, and the book is
+ * restored from there once the middleware is ready.
  */
 
 import middleware.*;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.io.*;
 
 public class Lamport {
 
 	private static int pid;			// id of this process
 	private static int iterations;		// number of iterations of currency updates
-	private static CurrencyValue curr;
+	private static CurrencyBook book;		// one currency value per instrument
 	private static DistributionLayer myDistLayer;
+	private static UpdateLog wal;			// null if the config does not ask for one
+	private static int snapshotEvery;		// take a snapshot after this many updates
+	private static long lastTime = -1;		// logical time of the last update we applied
+	private static final int QUEUE_CAPACITY = 65536;	// messages from us to the middleware
 
 
 
@@ -40,6 +49,58 @@ public class Lamport {
 
 
 
+	/* applyUpdate: Applies a delivered update to the currency value */
+	private static void applyUpdate (Message m) {
+		book.updateValue(m.getInstrument(),m.getUpdate(),m.getParts(),m.getTimestamp(),m.getSender());
+		lastTime = m.getTimestamp();
+	}
+
+
+
+
+
+	/* takeSnapshot: Saves the currency values in the update log if enough updates came since the
+	 * last snapshot, or anyway if force is set. The log before it is dropped.
+	 */
+	private static void takeSnapshot (boolean force) {
+		if (wal == null) {
+			return;
+		}
+		long n = book.getUpdateCount();
+		if (n == wal.getSnapshotIndex() || (! force && n - wal.getSnapshotIndex() < snapshotEvery)) {
+			return;
+		}
+		try {
+			wal.snapshot(n, lastTime, book.getState());
+		} catch (IOException e) {
+			System.err.println(getTimestamp() + "[ERROR] Could not take a snapshot");
+			e.printStackTrace();
+		}
+	}
+
+
+
+
+
+	/* restore: Gets the book back from the update log: the latest snapshot plus the updates
+	 * logged after it. Returns false if the snapshot is not of a book of our size.
+	 */
+	private static boolean restore () {
+		if (wal.getSnapshotState() != null && ! book.restore(wal.getSnapshotState(), wal.getSnapshotIndex(), wal.getSnapshotTime())) {
+			System.err.println(getTimestamp() + "[ERROR] Snapshot in the update log is not of " + book.size() + " instruments");
+			return false;
+		}
+		for (Message m : wal.getRecoveredTail()) {
+			book.replayValue(m.getInstrument(), m.getUpdate(), m.getTimestamp(), m.getSender());
+		}
+		lastTime = wal.getRecoveredTime();
+		return true;
+	}
+
+
+
+
+
 	/* getTimestamp: Method to get current timestamp */
 	
 	private static String getTimestamp() {
@@ -59,6 +120,8 @@ public class Lamport {
 		pid = Integer.parseInt(argv[0]);
 		iterations = Integer.parseInt(argv[1]);
 		int clock_rate = Integer.parseInt(argv[2]);
+		String configFile = argv.length > 3 ? argv[3] : "info.txt";
+		boolean rejoin = argv.length > 4 && argv[4].equals("rejoin");
 
 		String filename = "log" + pid;
 		FileWriter f = null;
@@ -74,18 +137,73 @@ public class Lamport {
 			e.printStackTrace();
 			return;
 		}
-		curr = new CurrencyValue(logger);
+
+		/* The config file tells us about all the nodes of the cluster and where they listen */
+		ClusterConfig config = null;
+		try {
+			config = ClusterConfig.load(configFile);
+		} catch (IOException e) {
+			System.err.println(getTimestamp() + "[ERROR] Could not read cluster config " + configFile);
+			e.printStackTrace();
+			return;
+		}
+		if (config.indexOf(pid) < 0) {
+			System.err.println(getTimestamp() + "[ERROR] P" + pid + " is not in cluster config " + configFile);
+			return;
+		}
 
 		/* Now we need an object for middleware which will start the lamport
 		 * logical clock, set up the connections and handle the queue.
 		 * As we need to set up the connections according to PID, we need to
 		 * give the middleware our pid and the clock rate. We also need two
-		 * synchronized queues for consumer-producer interactions
+		 * queues for consumer-producer interactions: a lock-free ring buffer towards
+		 * the middleware and an unbounded queue back, which the workers never wait on
 		 */
 
-		LinkedBlockingQueue<Message> appToMid = new LinkedBlockingQueue<Message>();
+		MpscRingBuffer<Message> appToMid = new MpscRingBuffer<Message>(QUEUE_CAPACITY);
 		LinkedBlockingQueue<Message> midToApp = new LinkedBlockingQueue<Message>();
-		myDistLayer = new DistributionLayer(pid, clock_rate, appToMid, midToApp, logger);
+		try {
+			myDistLayer = new DistributionLayer(pid, clock_rate, config, appToMid, midToApp, logger);
+		} catch (IllegalArgumentException e) {
+			System.err.println(getTimestamp() + "[ERROR] " + e.getMessage());
+			return;
+		}
+		book = new CurrencyBook(myDistLayer.getInstruments(), logger);
+
+		/* If the config asks for it, keep a log of the delivered updates. After a restart we get
+		 * our state back from it: the latest snapshot plus the updates logged after it. If we
+		 * rejoin, what we logged is out of date; the middleware replaces it with the state of the
+		 * cluster and we restore once it is ready.
+		 */
+		String walDir = config.getProperty("wal", null);
+		if (walDir != null) {
+			try {
+				long start = System.nanoTime();
+				snapshotEvery = Integer.parseInt(config.getProperty("snapshot.every", "1000"));
+				wal = UpdateLog.open(new File(walDir, "P" + pid));
+				if (! rejoin) {
+					if (! restore()) {
+						return;
+					}
+					logger.log("Recovered " + book.size() + " currency values after " + book.getUpdateCount() + " updates (" + wal.getRecoveredTail().size() + " replayed) in " + (System.nanoTime() - start) / 1000000 + " ms");
+				}
+			} catch (IOException e) {
+				System.err.println(getTimestamp() + "[ERROR] Could not open the update log in " + walDir);
+				e.printStackTrace();
+				return;
+			} catch (NumberFormatException e) {
+				System.err.println(getTimestamp() + "[ERROR] Bad snapshot.every in cluster config " + configFile);
+				return;
+			}
+			myDistLayer.setUpdateLog(wal);
+		}
+		if (rejoin) {
+			if (wal == null) {
+				System.err.println(getTimestamp() + "[ERROR] Rejoining needs an update log (wal in cluster config " + configFile + ")");
+				return;
+			}
+			myDistLayer.setRejoin(true);
+		}
 
 		/* We need to have a separate thread running which will take care of the
 		 * logical clock, the message queue and the connections (which in turn
@@ -100,20 +218,50 @@ public class Lamport {
 		Thread distThread = new Thread(myDistLayer);
 		distThread.start();
 
-		Message t;
-		while (true) {
-			if ((t = midToApp.poll()) != null) {
-				if (t.getSender() == -1) {
-					break;
-				}
-			}
+		/* wait till the middleware tells us it is ready (a message with sender -1). Updates may
+		 * be delivered right behind it, they stay in the batch. An exit message with sender -1
+		 * instead means it could not start (it said why), so we exit with an error.
+		 */
+		ArrayList<Message> batch = new ArrayList<Message>();
+		boolean ready = false;
+		while (! ready) {
 			try {
-				Thread.sleep(2000);
+				myDistLayer.drainTo(batch, 1, TimeUnit.SECONDS);
 			} catch (InterruptedException e) {
 				// nothing
 			}
+			for (int k = 0; k < batch.size() && ! ready; k++) {
+				if (batch.get(k).getSender() == -1 && batch.get(k).getType() == 'e') {
+					System.err.println(getTimestamp() + "[ERROR] P" + pid + " could not join the cluster");
+					try {
+						logger.closeLog();
+					} catch (IOException e) {
+						System.err.println(getTimestamp() + "[ERROR] Error closing the log file");
+					}
+					System.exit(1);
+				}
+				if (batch.get(k).getSender() == -1) {
+					ready = true;
+					batch.subList(0, k + 1).clear();
+				}
+			}
+			if (! ready) {
+				batch.clear();
+			}
 		}
 
+		/* The middleware has put the state of the cluster in the log by now */
+		if (rejoin) {
+			if (! restore()) {
+				return;
+			}
+			logger.log("Rejoined with " + book.size() + " currency values after " + book.getUpdateCount() + " updates (" + wal.getRecoveredTail().size() + " replayed)");
+		}
+		for (Message m : batch) {
+			applyUpdate(m);
+		}
+		batch.clear();
+
 		Random r = new Random();
 		int sleepTime;
 
@@ -135,16 +283,18 @@ public class Lamport {
 			// Now generate random update
 
 			int[] updateVal = generateUpdate(r);
-			Message m = new Message('u',0.0,pid);
-			m.setUpdate(updateVal);
+			int instrument = r.nextInt(book.size());
 
-			// put it in the queue
-			appToMid.add(m);
+			// hand it to the middleware. We do not wait for it to be delivered.
+			myDistLayer.submit(instrument, updateVal);
 
-			while (! midToApp.isEmpty()) {
-				Message temp = midToApp.poll();
-				curr.updateValue(temp.getUpdate(),temp.getTimestamp());
+			// apply whatever was delivered meanwhile
+			midToApp.drainTo(batch);
+			for (Message temp : batch) {
+				applyUpdate(temp);
 			}
+			batch.clear();
+			takeSnapshot(false);
 		}
 
 		/* We are here means that we have completed generation of all the updates.
@@ -159,28 +309,43 @@ public class Lamport {
 		 * message having type 'e'
 		 */
 
-		while (true) {
-			if (! midToApp.isEmpty()) {
-				Message m = midToApp.poll();
+		boolean done = false;
+		while (! done) {
+			try {
+				//System.out.println(getTimestamp() + "[App] Waiting for others to finish generating updates");
+				myDistLayer.drainTo(batch, 1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+
+			}
+			for (Message m : batch) {
 				if (m.getType() == 'e') {
-					break;
+					done = true;		// nothing comes after this
 				} else if (m.getType() == 'u') {
-					curr.updateValue(m.getUpdate(),m.getTimestamp());
+					applyUpdate(m);
 				} else {
 					System.err.println(getTimestamp() + "[ERROR] Message type '" + m.getType() + "' is not expected in application layer");
 				}
-
 			}
-			try {
-				//System.out.println(getTimestamp() + "[App] Waiting for others to finish generating updates");
-				Thread.sleep(2000);
-			} catch (InterruptedException e) {
+			batch.clear();
+			takeSnapshot(false);
+		}
 
+		/* The middleware is gone, nothing is appended to the log any more */
+		if (wal != null) {
+			takeSnapshot(true);
+			try {
+				wal.close();
+			} catch (IOException e) {
+				System.err.println(getTimestamp() + "[ERROR] Error closing the update log");
 			}
 		}
 
-		//System.out.println(getTimestamp() + "Final currency value is [" + curr.getValue()[0] + "," + curr.getValue()[1] + "]");
-		logger.log("Final currency value is [" + curr.getValue()[0] + "," + curr.getValue()[1] + "]");
+		for (int k = 0; k < book.size(); k++) {
+			int[] v = book.get(k).getValue();
+			String which = book.size() == 1 ? "" : " of I" + k;
+			//System.out.println(getTimestamp() + "Final currency value is [" + v[0] + "," + v[1] + "]");
+			logger.log("Final currency value" + which + " is [" + v[0] + "," + v[1] + "]");
+		}
 		try {
 			logger.closeLog();
 		} catch (IOException e) {
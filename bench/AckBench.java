@@ -0,0 +1,92 @@
+/* This benchmark measures the acknowledgment path of LamportOrderingEngine at different depths
+ * of its priority queue. The engine runs as P0 of a three node cluster; P1 sends updates and P2
+ * acknowledges them, so the head (the oldest update of P1) is delivered once P2's watermark for P1
+ * reaches it.
+ * 		ack		an ack vector which delivers nothing (the watermark stays below the head)
+ * 		cycle	one update of P1 in, one ack of P2 which delivers the head; the depth stays the same
+ * Nothing is sent to real peers, the context only counts.
+ */
+
+package bench;
+
+import middleware.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AckBench {
+
+	@Param({"1", "64", "1024"})
+	public int depth;
+
+	private LamportOrderingEngine engine;
+	private long nextUpdate;		// timestamp of the next update of P1
+	private long head;			// timestamp of the oldest update of P1 in the queue
+	private int delivered;
+	private int sent;
+
+
+
+	@Setup(Level.Iteration)
+	public void setup () {
+		ClusterConfig conf = new ClusterConfig(new int[] {0, 1, 2}, new String[] {"127.0.0.1", "127.0.0.1", "127.0.0.1"}, new int[] {9801, 9802, 9803});
+		OrderingEngine.Context ctx = new OrderingEngine.Context() {
+			public void multicast (Message m) {
+				sent++;
+			}
+
+			public void sendTo (int index, Message m) {
+				sent++;
+			}
+
+			public void deliver (Message m) {
+				delivered++;
+			}
+
+			public void ackRtt (int index, long nanos) {
+			}
+		};
+		engine = new LamportOrderingEngine(0, conf, new LogicalClock(0, 1), ctx);
+		nextUpdate = 1;
+		head = 1;
+		for (int i = 0; i < depth; i++) {
+			engine.receive(update());
+		}
+	}
+
+	private Message update () {
+		Message m = new Message('u', nextUpdate++, 1);
+		m.setUpdate(new int[] {1, -1});
+		return m;
+	}
+
+	private Message ackFromP2 (long p1Watermark) {
+		Message a = new Message('a', nextUpdate, 2);
+		a.setAcks(new long[] {-1, p1Watermark, -1});
+		return a;
+	}
+
+
+
+
+
+	@Benchmark
+	public boolean ack () {
+		return engine.receive(ackFromP2(head - 1));
+	}
+
+	@Benchmark
+	public int cycle () {
+		engine.receive(update());
+		engine.receive(ackFromP2(head++));
+		engine.flush();
+		return delivered;
+	}
+}
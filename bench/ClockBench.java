@@ -0,0 +1,62 @@
+/* This benchmark measures the logical clock: the increment for every event and the update on
+ * receiving a message (move past its timestamp, then increment), plus the comparison of two
+ * timestamps which orders the updates.
+ */
+
+package bench;
+
+import middleware.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClockBench {
+
+	private LogicalClock clock;
+	private long remote;			// timestamps of another node, running a bit ahead of ours
+	private long t1;
+	private long t2;
+
+
+
+	@Setup
+	public void setup () {
+		clock = new LogicalClock(0, 1);
+		remote = 0;
+		t1 = 1000;
+		t2 = 1000;
+	}
+
+
+
+
+
+	@Benchmark
+	public long increment () {
+		return clock.increment();
+	}
+
+	/* the same as LamportOrderingEngine does for every update it receives */
+	@Benchmark
+	public long receive () {
+		remote += 2;
+		if (clock.getTime() <= remote) {
+			clock.setTime(remote + 1);
+		}
+		return clock.increment();
+	}
+
+	@Benchmark
+	public int compare () {
+		t1++;
+		t2++;
+		return LogicalClock.compare(t1, 1, t2, 2);
+	}
+}
@@ -0,0 +1,99 @@
+/* This benchmark measures the serialization of messages the way the transports do it: the binary
+ * frames of MessageCodec (the default wire format) against ObjectOutputStream (WIRE_OBJECT of
+ * SocketThread). A message is an update with an ack vector of one entry per node; with parts > 1
+ * it is a coalesced update made of that many deltas.
+ */
+
+package bench;
+
+import middleware.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBench {
+
+	@Param({"3", "16"})
+	public int nodes;
+
+	@Param({"1", "16"})
+	public int parts;
+
+	private Message message;
+	private ByteBuffer buf;
+	private ByteBuffer frame;		// message encoded once, for decode()
+	private byte[] serialized;		// message written once with ObjectOutputStream
+
+
+
+	@Setup
+	public void setup () throws IOException {
+		message = new Message('u', 123456789L, 1);
+		message.setUpdate(new int[] {42, -17});
+		long[] acks = new long[nodes];
+		for (int i = 0; i < nodes; i++) {
+			acks[i] = 1000L * i;
+		}
+		message.setAcks(acks);
+		if (parts > 1) {
+			int[] p = new int[2 * parts];
+			for (int i = 0; i < p.length; i++) {
+				p[i] = i - parts;
+			}
+			message.setParts(p);
+		}
+
+		buf = ByteBuffer.allocate(MessageCodec.MAX_FRAME_SIZE);
+		frame = ByteBuffer.allocate(MessageCodec.frameSize(message));
+		MessageCodec.encode(message, frame);
+		frame.flip();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(message);
+		out.close();
+		serialized = bytes.toByteArray();
+	}
+
+
+
+
+
+	@Benchmark
+	public ByteBuffer encode () {
+		buf.clear();
+		MessageCodec.encode(message, buf);
+		return buf;
+	}
+
+	@Benchmark
+	public Message decode () throws IOException {
+		frame.rewind();
+		return MessageCodec.decode(frame);
+	}
+
+	/* A new stream per message, as its class descriptor is what a fresh peer pays for */
+	@Benchmark
+	public byte[] serialize () throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(message);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public Object deserialize () throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+		return in.readObject();
+	}
+}
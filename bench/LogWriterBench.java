@@ -0,0 +1,57 @@
+/* This benchmark measures the throughput of LogWriter: how many lines per second the callers
+ * get through log() while the writer thread formats them and writes them to a stream which
+ * throws them away. It runs with one caller and with four, like the application and the
+ * middleware threads logging at once.
+ */
+
+package bench;
+
+import middleware.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogWriterBench {
+
+	@Param({"0", "100"})
+	public long flushInterval;		// ms, see LogWriter.setFlushInterval()
+
+	private LogWriter logger;
+
+
+
+	@Setup(Level.Trial)
+	public void setup () {
+		logger = new LogWriter(new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream())));
+		logger.setFlushInterval(flushInterval);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown () throws IOException {
+		logger.closeLog();
+	}
+
+
+
+
+
+	@Benchmark
+	@Threads(1)
+	public void log () {
+		logger.log("[OP42 : C1234.1] Currency value is set to (153,53) by (53,-47)");
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void logContended () {
+		logger.log("[OP42 : C1234.1] Currency value is set to (153,53) by (53,-47)");
+	}
+}
@@ -0,0 +1,81 @@
+/* This benchmark measures the priority queue of the Lamport ordering: one insert and one poll
+ * while the queue holds 'depth' updates, in the UpdateHeap of the engines and in the PriorityQueue
+ * with LogicalTimeComparator it replaced. Updates come from a few senders with close timestamps,
+ * so the comparisons break ties on the pid now and then.
+ */
+
+package bench;
+
+import middleware.*;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QueueBench {
+
+	private static final int SENDERS = 4;
+
+	@Param({"16", "256", "4096"})
+	public int depth;
+
+	private PriorityQueue<Message> queue;
+	private UpdateHeap heap;
+	private Message[] pool;			// taken round robin, so no allocation in the loop
+	private long next;
+
+
+
+	@Setup
+	public void setup () {
+		queue = new PriorityQueue<Message>(50, new LogicalTimeComparator());
+		heap = new UpdateHeap(64);
+		pool = new Message[depth + 1];
+		for (int i = 0; i < pool.length; i++) {
+			pool[i] = new Message('u', 0, i % SENDERS);
+		}
+		next = 0;
+		for (int i = 0; i < depth; i++) {
+			queue.add(stamp(pool[i]));
+			heap.add(new Message('u', pool[i].getTimestamp(), pool[i].getSender()));	// the same keys, its own messages
+		}
+	}
+
+	/* stamp: Timestamps go up, but the senders' clocks overlap */
+	private Message stamp (Message m) {
+		m.setTime(next / SENDERS + (next % 3));
+		next++;
+		return m;
+	}
+
+
+
+
+
+	/* The polled message goes back in with a later timestamp, so the depth stays the same */
+	@Benchmark
+	public Message addPoll () {
+		Message head = queue.poll();
+		queue.add(stamp(head));
+		return head;
+	}
+
+	@Benchmark
+	public Message heapAddPoll () {
+		Message head = heap.poll();
+		heap.add(stamp(head));
+		return head;
+	}
+
+	@Benchmark
+	public int compare () {
+		return queue.comparator().compare(pool[0], pool[1]);
+	}
+}
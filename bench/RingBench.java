@@ -0,0 +1,85 @@
+/* This benchmark measures the hand-off between threads: producers put messages in a queue and one
+ * consumer drains it, once through the ring buffers of the middleware and once through the
+ * LinkedBlockingQueue they replaced. One producer is the SPSC case of a socket's inbound queue,
+ * three producers the MPSC case of an outbound queue filled by the middleware and the workers.
+ */
+
+package bench;
+
+import middleware.*;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RingBench {
+
+	private static final int CAPACITY = 16384;
+	private static final Message M = new Message('u', 1, 0);	// shared, so only the queue allocates
+
+	private SpscRingBuffer<Message> spsc;
+	private MpscRingBuffer<Message> mpsc;
+	private LinkedBlockingQueue<Message> lbq;
+
+
+
+	@Setup(Level.Iteration)
+	public void setup () {
+		spsc = new SpscRingBuffer<Message>(CAPACITY);
+		mpsc = new MpscRingBuffer<Message>(CAPACITY);
+		lbq = new LinkedBlockingQueue<Message>(CAPACITY);
+	}
+
+
+
+
+
+	@Benchmark
+	@Group("spsc")
+	@GroupThreads(1)
+	public boolean spscOffer () {
+		return spsc.offer(M);
+	}
+
+	@Benchmark
+	@Group("spsc")
+	@GroupThreads(1)
+	public Message spscPoll () {
+		return spsc.poll();
+	}
+
+	@Benchmark
+	@Group("mpsc")
+	@GroupThreads(3)
+	public boolean mpscOffer () {
+		return mpsc.offer(M);
+	}
+
+	@Benchmark
+	@Group("mpsc")
+	@GroupThreads(1)
+	public Message mpscPoll () {
+		return mpsc.poll();
+	}
+
+	@Benchmark
+	@Group("lbq")
+	@GroupThreads(3)
+	public boolean lbqOffer () {
+		return lbq.offer(M);
+	}
+
+	@Benchmark
+	@Group("lbq")
+	@GroupThreads(1)
+	public Message lbqPoll () {
+		return lbq.poll();
+	}
+}
@@ -0,0 +1,36 @@
+/* This class tells the transports how to coalesce outbound messages. Instead of one write (and
+ * one TCP segment) per message, all the messages queued for a peer go out in one write of at most
+ * maxBatch messages.
+ * The policy is adaptive: if a single message is waiting, the peer is idle and the message is
+ * sent right away. If more are waiting, the peer is busy and the writer may linger for a few
+ * microseconds to let the batch fill up. A linger time of 0 never waits.
+ */
+
+package middleware;
+
+public class BatchPolicy {
+
+	public static final BatchPolicy DEFAULT = new BatchPolicy(20, 256);
+	public static final BatchPolicy NO_BATCHING = new BatchPolicy(0, 1);
+
+	private long lingerNanos;
+	private int maxBatch;
+
+
+
+	public BatchPolicy (long lingerMicros, int maxBatch) {
+		if (lingerMicros < 0 || maxBatch < 1) {
+			throw new IllegalArgumentException("Invalid batch policy: linger " + lingerMicros + "us, batch " + maxBatch);
+		}
+		this.lingerNanos = lingerMicros * 1000;
+		this.maxBatch = maxBatch;
+	}
+
+	public long getLingerNanos () {
+		return lingerNanos;
+	}
+
+	public int getMaxBatch () {
+		return maxBatch;
+	}
+}
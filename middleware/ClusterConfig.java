@@ -0,0 +1,182 @@
+/* This class describes the cluster: which nodes there are and where they listen. It is read from
+ * the config file (info.txt by default), one node per line:
+ * 		<id> <host> <port>
+ * Ids have to be unique and not negative. Any number of nodes can share a host as long as their
+ * ports differ, so a whole cluster can run on localhost. Empty lines and lines starting with '#'
+ * are ignored.
+ * Settings which every node has to agree on are given as properties, one per line:
+ * 		<key>=<value>
+ * e.g. "ordering=sequencer" selects the OrderingEngine.
+ * The old format with two fields per line (<ip> <port>) is still accepted. In that case the ids
+ * are given in the order of the last number of the ip addresses, as they used to be.
+ * Internally every node also has an index (0 .. size()-1) in the order of the file. The index is
+ * used for anything which is kept per node, e.g. the ack vectors.
+ */
+
+package middleware;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class ClusterConfig {
+
+	private int[] ids;
+	private String[] hosts;
+	private int[] ports;
+	private int[] indexById;		// id -> index, -1 for unknown ids
+	private HashMap<String, String> properties;
+
+
+
+	public ClusterConfig (int[] ids, String[] hosts, int[] ports) {
+		if (ids.length != hosts.length || ids.length != ports.length) {
+			throw new IllegalArgumentException("Node ids, hosts and ports do not match");
+		}
+		if (ids.length > MessageCodec.MAX_NODES) {
+			throw new IllegalArgumentException("Too many nodes: " + ids.length);
+		}
+		this.ids = ids.clone();
+		this.hosts = hosts.clone();
+		this.ports = ports.clone();
+
+		int maxId = -1;
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] < 0) {
+				throw new IllegalArgumentException("Negative node id " + ids[i]);
+			}
+			maxId = Math.max(maxId, ids[i]);
+		}
+		indexById = new int[maxId + 1];
+		Arrays.fill(indexById, -1);
+		for (int i = 0; i < ids.length; i++) {
+			if (indexById[ids[i]] != -1) {
+				throw new IllegalArgumentException("Duplicate node id " + ids[i]);
+			}
+			indexById[ids[i]] = i;
+		}
+		properties = new HashMap<String, String>();
+	}
+
+
+
+
+
+	/* load: Reads the config file. Throws IOException if it can not be read or has a line we
+	 * do not understand.
+	 */
+	public static ClusterConfig load (String filename) throws IOException {
+		ArrayList<String[]> lines = new ArrayList<String[]>();
+		HashMap<String, String> props = new HashMap<String, String>();
+		BufferedReader in = new BufferedReader(new FileReader(filename));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) {
+					continue;
+				}
+				int eq = line.indexOf('=');
+				if (eq > 0) {
+					props.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+					continue;
+				}
+				lines.add(line.split("\\s+"));
+			}
+		} finally {
+			in.close();
+		}
+
+		int n = lines.size();
+		int[] ids = new int[n];
+		String[] hosts = new String[n];
+		int[] ports = new int[n];
+		boolean legacy = n > 0 && lines.get(0).length == 2;
+		try {
+			for (int i = 0; i < n; i++) {
+				String[] fields = lines.get(i);
+				if (legacy && fields.length == 2) {
+					hosts[i] = fields[0];
+					ports[i] = Integer.parseInt(fields[1]);
+				} else if (!legacy && fields.length == 3) {
+					ids[i] = Integer.parseInt(fields[0]);
+					hosts[i] = fields[1];
+					ports[i] = Integer.parseInt(fields[2]);
+				} else {
+					throw new IOException("Bad line in " + filename + ": " + String.join(" ", fields));
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad number in " + filename + ": " + e.getMessage());
+		}
+
+		if (legacy) {
+			/* every process having smaller last number of ip address has smaller pid */
+			for (int i = 0; i < n; i++) {
+				int lastDig = lastNumber(hosts[i]);
+				for (int j = 0; j < n; j++) {
+					if (lastNumber(hosts[j]) < lastDig) {
+						ids[i]++;
+					}
+				}
+			}
+		}
+		try {
+			ClusterConfig conf = new ClusterConfig(ids, hosts, ports);
+			conf.properties.putAll(props);
+			return conf;
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Bad cluster in " + filename + ": " + e.getMessage());
+		}
+	}
+
+	private static int lastNumber (String ip) throws IOException {
+		String[] ipFields = ip.split("\\.");
+		try {
+			return Integer.parseInt(ipFields[ipFields.length - 1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Old style config needs ip addresses, got " + ip);
+		}
+	}
+
+
+
+
+
+	/* Pretty much self-explanatory methods */
+
+	public int size () {
+		return ids.length;
+	}
+
+	public int getId (int index) {
+		return ids[index];
+	}
+
+	public String getHost (int index) {
+		return hosts[index];
+	}
+
+	public int getPort (int index) {
+		return ports[index];
+	}
+
+	/* indexOf: index of the node with this id, -1 if there is no such node */
+	public int indexOf (int id) {
+		if (id < 0 || id >= indexById.length) {
+			return -1;
+		}
+		return indexById[id];
+	}
+
+	/* getProperty: value of a property line, def if the file does not have it */
+	public String getProperty (String key, String def) {
+		String v = properties.get(key);
+		return v != null ? v : def;
+	}
+
+	public void setProperty (String key, String value) {
+		properties.put(key, value);
+	}
+}
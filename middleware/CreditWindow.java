@@ -0,0 +1,90 @@
+/* This class bounds the number of our updates in flight: submitted by the application and not yet
+ * delivered here. Every update takes a credit when it is submitted and gives it back when it is
+ * delivered in total order. That happens only after every other node has acknowledged it (Lamport)
+ * or the sequencer has ordered it, so a slow peer keeps our credits and slows us down instead of
+ * letting its queues grow. With a window on every node, no node holds more than the windows of all
+ * the nodes in its queues.
+ * The free credits are an AtomicInteger. tryAcquire() takes one with a compare-and-set and fails at
+ * once if there is none, acquireUninterruptibly() parks till release() gives some back. overdraw()
+ * takes one without waiting even if that goes below zero, for the middleware thread which must
+ * never block.
+ */
+
+package middleware;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+class CreditWindow {
+
+	private int size;
+	private AtomicInteger free;			// credits left, below zero if overdrawn
+	private ConcurrentLinkedQueue<Thread> waiting;	// threads parked in acquireUninterruptibly()
+
+
+
+	CreditWindow (int size) {
+		this.size = size;
+		free = new AtomicInteger(size);
+		waiting = new ConcurrentLinkedQueue<Thread>();
+	}
+
+
+
+
+
+	int getSize () {
+		return size;
+	}
+
+	/* inFlight: Credits taken and not given back yet */
+	int inFlight () {
+		return size - free.get();
+	}
+
+	int availablePermits () {
+		return free.get();
+	}
+
+	/* tryAcquire: Takes a credit if there is one */
+	boolean tryAcquire () {
+		while (true) {
+			int f = free.get();
+			if (f <= 0) {
+				return false;
+			}
+			if (free.compareAndSet(f, f - 1)) {
+				return true;
+			}
+		}
+	}
+
+	/* acquireUninterruptibly: Takes a credit, waiting till there is one. We are in the queue before
+	 * we look again, so a release() in between unparks us and park() returns at once.
+	 */
+	void acquireUninterruptibly () {
+		if (tryAcquire()) {
+			return;
+		}
+		Thread me = Thread.currentThread();
+		waiting.add(me);
+		while (! tryAcquire()) {
+			LockSupport.park(this);
+		}
+		waiting.remove(me);
+	}
+
+	/* release: Gives back n credits and wakes up the waiting threads to compete for them */
+	void release (int n) {
+		free.addAndGet(n);
+		for (Thread t : waiting) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	/* overdraw: Takes a credit, even if there is none left */
+	void overdraw () {
+		free.decrementAndGet();
+	}
+}
@@ -0,0 +1,16 @@
+/* This interface is for applications which want the delivered updates pushed to them instead of
+ * pulling them from the queue of the middleware. See DistributionLayer.subscribe().
+ * It is called once per round of a DomainWorker with everything the worker delivered in that round,
+ * in the total order of every instrument. Calls never overlap, but they come from the worker
+ * threads. The listener should not block: no other batch is delivered while it runs.
+ */
+
+package middleware;
+
+import java.util.List;
+
+public interface DeliveryListener {
+
+	/* deliver: batch is not empty and must not be changed */
+	void deliver (List<Message> batch);
+}
@@ -1,62 +1,213 @@
 /* This class implements the core functionality of middleware and handles the messages and 
- * co-ordinates between communications as well as exit strategy. It also handles the
- * Lamport's logical clock and hence the timestamps as well as the ordering of the messages. 
- * It starts with creating number of sockets connected to other nodes. It then spawns a thread 
- * to handle each of those sockets.
- * Middleware accepts messages from the application layer, stamps them with lamport's logical 
- * time and puts them in queue of each socket thread. It also polls the incoming queue of each 
- * socket thread to pull any received messages. 
- * It processes the messages according to their type. Update messages are put in a priority queue 
- * and acknowledgments are sent for them. Acknowledgment messages are used for updating the 
- * acknowledgment counter of update messages in the queue. It also sends the exit messages to 
- * other queues as well as 'poke' messages to request exiting process to wait.
+ * co-ordinates between communications as well as exit strategy. The ordering of the messages is
+ * left to an OrderingEngine, which is chosen by the "ordering" property of the cluster config.
+ * The nodes of the cluster (ids, hosts and ports) are given by a ClusterConfig.
+ * It starts with connecting to the other nodes through a Transport: sockets (TcpTransport, the
+ * default) or in-memory queues to nodes in the same JVM (LoopbackTransport).
+ * Updates belong to instruments ("instruments" property, 1 by default). Every instrument is an
+ * ordering domain of its own with its own logical clock and engine. The domains are run by a few
+ * DomainWorker threads ("workers" property), all of them over the same connections.
+ * With the "coalesce.window" property the updates of an instrument submitted within that many
+ * milliseconds (at most "coalesce.max" of them) are merged into one before they are ordered.
+ * At most "window" updates of ours (1024 by default, less in large clusters) are in flight, submitted and not delivered
+ * yet. Beyond that submit() waits and trySubmit() is rejected, see CreditWindow.
+ * Middleware accepts messages from the application layer and hands the updates to the worker of
+ * their instrument, whose engine sends them to the other nodes through the socket threads. It also
+ * polls the incoming queue of each socket thread to pull any received messages. When there is
+ * nothing to do, it blocks on an EventSignal which the application and the transport threads
+ * signal after queuing something.
+ * Received messages of the ordering protocol go to the worker of their instrument, whose engine
+ * hands the updates back for delivery once they are in order. Everything a worker delivers in one
+ * round goes to the application as one batch, either to the subscribed DeliveryListeners or to the
+ * queue towards the application (see drainTo()). Updates given to submit() also complete their
+ * future then. If there is an UpdateLog, the batch is appended and committed to it before it is
+ * handed over. The order between instruments is not defined, within one it is total.
+ * Measurements of the node (latencies, queue depths, message counts) are shown over JMX by a
+ * MiddlewareMetrics while the middleware runs.
+ * The middleware itself handles the exit messages with its own logical clock. Termination is
+ * detected by counting: once our application is done and our engines are idle we tell everybody
+ * how many updates we sent ('e'); once we delivered that many from every node we confirm it ('f');
+ * and once every node confirmed, nothing is left in flight anywhere and we exit.
  * When we are done, it sends exit signals to the socket threads and then exits when cleanup is done.
- * Hence the meethods provided by this class include deliverMessages(), getMessages(), 
- * sendMessages(), createClientSockets(), createServerSockets() etc.
+ * A node which restarted can rejoin the running cluster (setRejoin(), needs an update log). It
+ * connects to all the others, and the node at the first position of the config other than its own
+ * (the donor) sends it the state of the cluster:
+ * 		1. Every live node takes what is left on the old connection of the rejoining node, switches
+ * 		   to the new one while its workers are paused and sends the donor a marker ('k', with the
+ * 		   latest update of the rejoining node it received).
+ * 		2. Once the donor has switched too and has the markers of all the others, everything they
+ * 		   sent before switching has reached it. With its workers paused it sends the rejoining
+ * 		   node its state: a header ('s'), the latest snapshot of its update log ('v') and the
+ * 		   updates logged after it ('l'), the counts of the exit protocol ('n'), the state of its
+ * 		   engines and an end marker ('z'). What the engines of the others need to know goes to
+ * 		   them at the same time, followed by an end marker as well. Till that marker comes, a
+ * 		   live node holds back what the rejoining node sends it.
+ * 		3. The rejoining node installs the snapshot and the updates as its update log, hands the
+ * 		   state to its engines, moves its clocks past every update it sent before, and only then
+ * 		   starts its workers and tells the application it is ready. What the others sent it
+ * 		   meanwhile is handled after that; what the state already covered is dropped.
+ * The work depends on the size of the snapshot and the updates since, not on the whole history.
+ * One node rejoins at a time.
+ * Hence the methods provided by this class include getMessages(), sendMessages() etc. The
+ * sockets are set up by TcpTransport.
  */
 
 package middleware;
 
 import java.text.SimpleDateFormat;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.PriorityQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.io.*;
-import java.net.*;
 
 public class DistributionLayer implements Runnable {
 
+	public static final int TRANSPORT_THREADS = TcpTransport.THREADS;	// one SocketThread per peer
+	public static final int TRANSPORT_NIO = TcpTransport.NIO;		// one selector thread for all peers
+	public static final int TRANSPORT_DUPLEX = TcpTransport.DUPLEX;	// a reader and a writer thread per peer
+
 	private int pid;
-	private LogicalClock clock;
-	private PriorityQueue<Message> queue;
-	private Comparator<Message> comp;
-	private LinkedBlockingQueue<Message> app2mid;
-	private LinkedBlockingQueue<Message> mid2app;
-	private final int otherNodes = 2;
-	private boolean exitFlag;
-	private boolean exitOk;
-	private boolean letExit;
-	private LinkedList<Double> ackList;
+	private LogicalClock clock;		// stamps the exit messages, the instruments have clocks of their own
+	private int numInstruments;
+	private DomainWorker[] workers;		// instrument i is run by workers[i % workers.length]
+	private Thread[] workerThreads;
+	private MpscRingBuffer<Message> app2mid;
+	private LinkedBlockingQueue<Message> mid2app;	// the workers and we put, the application takes; unbounded
+	private ClusterConfig config;
+	private int myIndex;			// our position in the config; ack vectors are kept by position
+	private int otherNodes;
+	private Transport transport;		// null: a TcpTransport of transportMode and batchPolicy
+	private int transportMode = TRANSPORT_NIO;
+	private BatchPolicy batchPolicy = BatchPolicy.DEFAULT;
+	private volatile boolean exitFlag;
+	private long[] deliveredFrom;		// by position: updates of that node we delivered, under publishLock
+	private long[] sentBy;			// by position: updates that node sent, from its 'e'; -1 till then
+	private boolean[] finished;		// by position: that node sent 'f'
+	private boolean announced;		// we sent our 'e'
+	private boolean confirmed;		// we sent our 'f'
+	private int numNodes;
+	private Peer[] peers;
+	private Peer[] peerAt;			// peerAt[i]: peer of the node at position i of the config, null for us
+	private boolean rejoin;			// we restarted while the others kept running
+	private int joining;			// position of the node we are the donor for, -1 if none
+	private boolean[] marked;		// by position: that node has switched to the new connection
+	private long joinLatest;		// the latest update of the joining node those nodes received
+	private int holding;			// position of the rejoining node whose messages we hold back, -1 if none
+	private ArrayList<Message> held;	// what it sent us before its donor's end marker came
 	private LogWriter logger;
+	private EventSignal events;
+	private CopyOnWriteArrayList<DeliveryListener> listeners;
+	private ConcurrentHashMap<Message, CompletableFuture<Message>> futures;	// submitted, not yet picked up by a worker
+	private Object publishLock;		// the workers publish one batch at a time
+	private UpdateLog updateLog;		// null if we do not keep one
+	private MiddlewareMetrics metrics;
+	private CreditWindow window;		// our updates in flight
+	private static final long IDLE_WAIT = 1000;	// ms. just a safety net, all producers signal us
 
 
 
-	public DistributionLayer (int pid, int step, LinkedBlockingQueue<Message> a2m, LinkedBlockingQueue<Message> m2a, LogWriter l) {
+	public DistributionLayer (int pid, int step, ClusterConfig conf, MpscRingBuffer<Message> a2m, LinkedBlockingQueue<Message> m2a, LogWriter l) {
 		this.pid = pid;
+		config = conf;
+		myIndex = config.indexOf(pid);
+		if (myIndex < 0) {
+			throw new IllegalArgumentException("P" + pid + " is not in the cluster config");
+		}
+		numNodes = config.size();
+		otherNodes = numNodes - 1;
 		clock = new LogicalClock(pid, step);
-		comp = new LogicalTimeComparator();
-		queue = new PriorityQueue<Message>(50,comp);
 		logger = l;
 		app2mid = a2m;
 		mid2app = m2a;
 		exitFlag = false;
-		letExit = false;
-		exitOk = false;
-		ackList = new LinkedList<Double>();
+		deliveredFrom = new long[numNodes];
+		sentBy = new long[numNodes];
+		Arrays.fill(sentBy, -1);
+		finished = new boolean[numNodes];
+		announced = false;
+		confirmed = false;
+		rejoin = false;
+		joining = -1;
+		holding = -1;
+		events = new EventSignal();
+		listeners = new CopyOnWriteArrayList<DeliveryListener>();
+		futures = new ConcurrentHashMap<Message, CompletableFuture<Message>>();
+		publishLock = new Object();
+		metrics = new MiddlewareMetrics(pid, config);
+
+		/* Spread the instruments over the workers, round robin */
+		String ordering = config.getProperty("ordering", "lamport");
+		int numWorkers;
+		try {
+			numInstruments = Integer.parseInt(config.getProperty("instruments", "1"));
+			numWorkers = Integer.parseInt(config.getProperty("workers", "0"));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad number of instruments or workers in the cluster config");
+		}
+		if (numInstruments < 1 || numWorkers < 0) {
+			throw new IllegalArgumentException("Bad number of instruments or workers in the cluster config");
+		}
+		long coalesceWindow;			// -1: updates are not merged
+		int coalesceMax;
+		try {
+			coalesceWindow = Long.parseLong(config.getProperty("coalesce.window", "-1"));
+			coalesceMax = Integer.parseInt(config.getProperty("coalesce.max", "64"));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad coalescing window or count in the cluster config");
+		}
+		if (coalesceWindow < -1 || coalesceMax < 1 || coalesceMax > MessageCodec.MAX_PARTS) {
+			throw new IllegalArgumentException("Bad coalescing window or count in the cluster config");
+		}
+		int maxWindow = SocketThread.QUEUE_CAPACITY / 2 / numNodes;
+		int windowSize;
+		try {
+			windowSize = Integer.parseInt(config.getProperty("window", String.valueOf(Math.min(1024, maxWindow))));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad window in the cluster config");
+		}
+		/* The queues towards the peers and the workers are bounded. If the updates all the nodes
+		 * may have in flight do not fit, a full queue could block the very thread that would
+		 * empty another one.
+		 */
+		if (windowSize < 1 || windowSize > maxWindow) {
+			throw new IllegalArgumentException("Window of " + windowSize + " updates is out of range for " + numNodes + " nodes");
+		}
+		window = new CreditWindow(windowSize);
+		if (numWorkers == 0) {
+			numWorkers = Math.min(numInstruments, Runtime.getRuntime().availableProcessors());
+		}
+		numWorkers = Math.min(numWorkers, numInstruments);
+		workers = new DomainWorker[numWorkers];
+		for (int w = 0; w < numWorkers; w++) {
+			int[] instruments = new int[(numInstruments - w + numWorkers - 1) / numWorkers];
+			for (int k = 0; k < instruments.length; k++) {
+				instruments[k] = w + k * numWorkers;
+			}
+			workers[w] = new DomainWorker(this, pid, step, config, ordering, numInstruments, instruments, coalesceWindow, coalesceMax, futures, events, metrics);
+		}
+	}
+
+
+
+
+
+	/* createEngine: Makes the engine named by the "ordering" property for one ordering domain */
+	static OrderingEngine createEngine (String ordering, int pid, ClusterConfig config, LogicalClock clock, OrderingEngine.Context ctx) {
+		if (ordering.equals("lamport")) {
+			return new LamportOrderingEngine(pid, config, clock, ctx);
+		} else if (ordering.equals("sequencer")) {
+			return new SequencerOrderingEngine(pid, config, clock, ctx);
+		}
+		throw new IllegalArgumentException("Unknown ordering " + ordering);
 	}
 
 
@@ -65,8 +216,8 @@ public class DistributionLayer implements Runnable {
 
 	/* run: This method is the heart of the middleware. It runs in a loop waiting for messages
 	 * to send to other nodes and receive messages from other nodes. It handles the communication
-	 * as well as the logical clock and the ordering of the messages. It receives the messages and
-	 * sends the acknowledgments. It also takes the exit decision. Hence it is by and large the 
+	 * and hands the messages it receives to the workers running the ordering domains.
+	 * It also takes the exit decision. Hence it is by and large the 
 	 * most important and the most complicated part of the whole system.
 	 */
 	public void run() {
@@ -75,180 +226,150 @@ public class DistributionLayer implements Runnable {
 		 * deliver received messages to the main thread.
 		 */
 
-		// part 1: TCP connections
-		
-		// count how many servers and clients we need to create.
-		int numServerSockets = otherNodes - pid;
-		int numClientSockets = pid;
+		// part 1: connections
 		
-
-		/* First accept connections from others. Then we will connect to 
-		 * others.
+		/* The transport connects us to every other node and gives us a peer for each of them,
+		 * by their position in the config.
 		 */
-		Socket[] serverSockets = createServerSockets(numServerSockets);
-		//logger.log("[Middleware] Waiting for all to be connected");
-		logger.log("Waiting for all to be connected");
-		Socket[] clientSockets = createClientSockets(numClientSockets);
-		//logger.log("[Middleware] All connected");
-		logger.log("All connected");
-		int totalThreads = serverSockets.length + clientSockets.length;
+		if (transport == null) {
+			transport = new TcpTransport(transportMode, batchPolicy);
+		}
+		if (rejoin && updateLog == null) {
+			System.err.println(getTimestamp() + "[ERROR] P" + pid + " can not rejoin without an update log");
+			giveUp();
+			return;
+		}
+		try {
+			peerAt = rejoin ? transport.rejoin(pid, config, logger, events) : transport.connect(pid, config, logger, events);
+		} catch (IOException e) {
+			System.err.println(getTimestamp() + "[ERROR] Could not connect to the other nodes");
+			e.printStackTrace();
+			giveUp();
+			return;
+		} catch (IllegalArgumentException e) {
+			System.err.println(getTimestamp() + "[ERROR] " + e.getMessage());
+			giveUp();
+			return;
+		}
+		peers = new Peer[otherNodes];
+		int p = 0;
+		for (int i = 0; i < numNodes; i++) {
+			if (peerAt[i] != null) {
+				peers[p++] = peerAt[i];
+			}
+		}
 		
-		// create array of threads which handle our sockets
-		SocketThread[] socketRunnables = new SocketThread[totalThreads];
-		Thread[] socketThreads = new Thread[totalThreads];
+		metrics.attach(peerAt, workers, mid2app, window);
+		metrics.register();
 		
-		/* Now start the threads to handle each server socket */
-		Message temp;
-		for (int i = 0; i < serverSockets.length; i++) {
-			socketRunnables[i] = new SocketThread(serverSockets[i],logger);
-			socketThreads[i] = new Thread(socketRunnables[i]);
-			socketThreads[i].start();
-			
-			/* The thread has some initialization tasks to do before it is functional. It might 
-			 * take a little while to initialize. We should wait till it is ready.
-			 * The thread sends a message to middleware with sender set to -1 when it is ready to roll.
-			 * Wait for this message here.
-			 */
-			while (true) {
-				if ( (temp = socketRunnables[i].getMessage()) != null ) {
-					if (temp.getSender() == -1 ) {
-						break;
-					}
-				}
-				try {
-					Thread.sleep(2000);
-				} catch (InterruptedException e) {
-					// nothing
-				}
-			}
+		/* If we rejoin, the engines get the state of the cluster before they start */
+		ArrayList<Message> early = new ArrayList<Message>();
+		if (rejoin && ! catchUp(early)) {
+			transport.close();
+			metrics.unregister();
+			giveUp();
+			return;
 		}
 		
-		/* do the same thing for client sockets */
-		for (int i = 0; i < clientSockets.length; i++) {
-			int offset =  serverSockets.length;
-			socketRunnables[i + offset] = new SocketThread(clientSockets[i],logger);
-			socketThreads[i + offset] = new Thread(socketRunnables[i + offset]);
-			socketThreads[i + offset].start();
-			while (true) {
-				if ( (temp = socketRunnables[i + offset].getMessage()) != null ) {
-					if (temp.getSender() == -1 ) {		// wait till coast is clear
-						break;
-					}
-				}
-				try {
-					Thread.sleep(2000);
-				} catch (InterruptedException e) {
-					// nothing
-				}
-			}
+		/* The peers are known now, so the workers can start */
+		workerThreads = new Thread[workers.length];
+		for (int w = 0; w < workers.length; w++) {
+			workerThreads[w] = new Thread(workers[w], "DomainWorker-" + w);
+			workerThreads[w].start();
+		}
+		for (int i = 0; i < early.size(); i++) {
+			handle(early.get(i));
 		}
-		/* Socket threads indicated that they are ready to function. Same thing is 
+		
+		/* The transport is connected and ready to function. Same thing is 
 		 * true between application and middleware. First part of our task is complete.
 		 * Now send a message to the application indicating we are initialized and are
 		 * ready to start functioning. Do this by sending a message that has sender set 
 		 * to -1. 
 		 */
-		mid2app.add(new Message('u',clock.getTime(),-1));
+		mid2app.offer(new Message('u',clock.getTime(),-1));
 		
 		
 		// Part 2: Message handling and ordering
 		
 		/* Now is part 2 of the plan. This is related to message handling
-		 * We have to accept the messages from middleware and socket threads and put them
-		 * in the priority queue. We also need to send acknowledgments to appropriate 
-		 * processes. Then if all the acknowledgments for a message are received, we 
-		 * need to pop the message and give it to the application layer. 
+		 * We have to accept the messages from application and socket threads and give them
+		 * to the workers of their instruments. The engines there send what their protocol needs
+		 * and deliver the messages to the application layer once they are in order.
 		 */
 		
 		while (true) {
-						
-			// first lets send all the messages in out outbound queue
-			
-			sendMessages(socketRunnables);
-			
-			// now check if we have received any new message
-			getMessages(socketRunnables);
 			
+			// a node which restarted may have connected to us again
+			takeRejoined();
+						
+			// first lets check if we have received any new message and pass it on
+			getMessages(peers);
 			
-			/* Now the next step is, to check if head of the priority queue has all the
-			 * acknowledgments received. If so, then we will pop it and give it to the
-			 * application 
-			 */
 			
-			deliverMessages();
+			// Now send all the messages in our outbound queue.
+			sendMessages(peers);
 			
 			
 			/* The application will generate an interrupt and set our exit flag when it is
 			 * done generating all its updates. But we can not be sure that other applications are done 
 			 * with the updates too. Also, application layer has no idea if there are any pending
-			 * messages in the priority queue.
+			 * messages in the ordering engine.
 			 */
-			if (Thread.interrupted() && exitFlag) {
-				/* Now we have to check if our priority queue is empty. Till the time the queue is
-				 * empty, we are definitely not ready to exit.
-				 */
+			if (exitFlag) {
+				Thread.interrupted();		// the interrupt only served to wake us up
 				
-				if (! queue.isEmpty()) {
-					
-					exitOk = false;			// we are not ready to exit
-					letExit = false;		// we are not OK with other people exiting
-					deliverMessages();
-					Thread.currentThread().interrupt();
+				/* Now we have to check if any engine has anything left to deliver. Till the time
+				 * they are idle, we are definitely not ready to exit.
+				 */
+				if (! workersIdle()) {
+					waitForWork();
 					continue;
 				}
 				
-				/* If our priority queue is empty, we can send message to others asking if it is 
-				 * OK to exit.
-				 */
-				
-				/* Here we assume that it is OK for us to exit (we will test that theory soon)
-				 * also, we are here means:
+				/* We are here means:
 				 * 		1. Our update generation is complete
-				 * 		2. Our priority queue is empty (all messages delivered)
-				 * Hence we can let other people exit and assume that we can exit too. 
+				 * 		2. The engines are idle, so every update we sent is delivered here
+				 * Hence the number of updates we delivered from ourselves is all we will ever send.
+				 * Tell everybody, so they know how many of ours to wait for.
 				 */
-				exitOk = true;
-				letExit = true;
-				
-				// send the exit messages
-				clock.increment();
-				// System.out.println(getTimestamp() + "[Middleware] Sending exit probe");
-				app2mid.add(new Message('e',clock.getTime(),pid));
-				sendMessages(socketRunnables);
-				
-				// wait for it...
-				try {
-					Thread.sleep(10000);		/* other nodes may be overwhelmed. Give them decent amout of
-												 * time to say "No" to our exit request. Only thing to lose here
-												 * is that we will wait a little longer. Thats OK.
-												 */ 
-				} catch (InterruptedException e) {
-					/* If we are interrupted, maybe we did not give enough time for other threads to respond
-					 * Take no risks. Do one more interation.
-					 */
-					exitOk = false;
-					letExit = false;
-					Thread.currentThread().interrupt();
-					continue;
+				if (! announced) {
+					synchronized (publishLock) {
+						sentBy[myIndex] = deliveredFrom[myIndex];
+					}
+					sendControl('e', sentBy[myIndex]);
+					announced = true;
 				}
 				
-				// now check if anyone sent is a probbing message which will indicate that we need to wait
-				getMessages(socketRunnables);
+				/* Once every node told us how many it sent and we delivered that many from each of
+				 * them, nothing is left for us. Confirm it.
+				 */
+				if (! confirmed && deliveredAll()) {
+					sendControl('f', 0);
+					finished[myIndex] = true;
+					confirmed = true;
+				}
 				
-				/* now check if everyone is OK with us exiting. this is done by checking the flag that is
-				 * probably un-set by getMessages method
+				/* If every node confirmed, every update of the cluster is delivered everywhere and
+				 * nobody needs anything from anybody anymore. We can go.
 				 */
-				if (exitOk && queue.isEmpty()) {
+				if (confirmed && allFinished()) {
 					
 					/* Kill all the socket threads */
-					killSockets(socketRunnables, socketThreads);
+					killSockets(peers);
 					// System.out.println(getTimestamp() + "[middleware] Exiting now");
+					stopWorkers();
+					metrics.unregister();
 					/* Tell application layer that we (this thread) are exiting */
-					mid2app.add(new Message('e',0.0,pid));
+					mid2app.offer(new Message('e',0,pid));
 					return;
 				}
-				Thread.currentThread().interrupt();
+				waitForWork();
+				continue;
 			}
+			
+			/* All the queues are drained. Sleep till there is more work. */
+			waitForWork();
 		}
 	}
 
@@ -257,26 +378,11 @@ public class DistributionLayer implements Runnable {
 
 
 
-	/* deliverMessages: This method is to deliver the messages to the application layer.
-	 * It basically takes a peek at the head of the priority queue. If we have received
-	 * enough acknowledgments for that message, then we can deliver that message. If not,
-	 * we have to wait. If the head is delivered, then check for the next head too.
+	/* giveUp: We could not start (or rejoin). Instead of the ready message the application gets an exit
+	 * message which is not from any node (sender -1), so it does not wait for us forever.
 	 */
-	
-	private void deliverMessages() {
-		
-		while (! queue.isEmpty()) {
-			while ( ackList.remove(queue.peek().getTimestamp()) ) {
-				
-				queue.peek().incrementAck();
-				// System.out.println(getTimestamp() + "[dbg] removing ack for " + queue.peek().getTimestamp() + " new counter " + queue.peek().getAcks());
-			}
-			if (readyToPop()) {
-				mid2app.add(queue.poll());
-			} else {
-				return;
-			}
-		}
+	private void giveUp () {
+		mid2app.offer(new Message('e', 0, -1));
 	}
 
 
@@ -284,49 +390,28 @@ public class DistributionLayer implements Runnable {
 
 
 
-	/* killSockets: This method tells the threads handling the sockets to exit.
-	 * This is a little risky task. Unlike the application layer and the middleware,
-	 * we do not have any shared data structure here. Hence a thread should not exit
-	 * before we pull all the messages. That means it has to wait on us. And if we
-	 * rush into message checking and proceed to exit, we will get stuck in the 
-	 * situation where child is waiting for us to pull the messages and we are waiting
-	 * for it to join.
-	 * The join method returns void, hence we cant detect a failure to join there.
-	 * otherwise, we could come back and check more messages. Anyway...
+	/* waitForWork: Blocks till the application or one of the transport threads signals that
+	 * it has queued something for us. The signals are not counted, when we wake up we drain
+	 * every queue in one batch.
 	 */
-
-	private void killSockets (SocketThread[] s, Thread[] t) {
-		// first, push all our pending messages out.
-		sendMessages(s);
-		
-		for (int i = 0; i < s.length; i++) {
-			s[i].setExitFlag();
-			t[i].interrupt();
-		}
-		/* this is risky. if socket thread receives some messages while we call getMessages() 
-		 * then it will wait for us to pull that message and we will never do. so add some 
-		 * sleep.
-		 */
+	private void waitForWork () {
 		try {
-			Thread.sleep(2000);							// this should be enough (?)
+			events.await(IDLE_WAIT);
 		} catch (InterruptedException e) {
-			System.err.println("[ERROR] Interrupted while waiting for socket threads");
+			// the application interrupts us after setting the exit flag. The main loop checks it.
 		}
+	}
 
-		// now check the messages we pulled
-		getMessages(s);
 
 
-		for (int i=0; i < s.length; i++) {
-			try {
-				t[i].join();
-				// System.out.println(getTimestamp() + "[Middleware] Thread " + i + " exited");
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-				System.err.println("[ERROR] Interrupted while waiting for socket thread to exit");
-			}
-		}
-		getMessages(s);
+
+
+
+	/* setTransport: Selects how we are connected to the other nodes. Has to be called before the
+	 * middleware thread is started. Without it we use a TcpTransport.
+	 */
+	public void setTransport (Transport t) {
+		transport = t;
 	}
 
 
@@ -334,14 +419,11 @@ public class DistributionLayer implements Runnable {
 
 
 
-	/* This method is for getting the timestamp. We are not logging anything here, and logger
-	 * has its own timestamp, but error messages need this. so, keep it. 
+	/* setTransportMode: Selects TRANSPORT_THREADS, TRANSPORT_NIO or TRANSPORT_DUPLEX for the default TcpTransport.
+	 * Has to be called before the middleware thread is started.
 	 */
-	private String getTimestamp() {
-		Date date = new Date();
-		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy h:mm:ss a : ");
-		String formattedDate = sdf.format(date);
-		return formattedDate; // 09/01/2014 4:48:16 PM
+	public void setTransportMode (int mode) {
+		transportMode = mode;
 	}
 
 
@@ -349,110 +431,112 @@ public class DistributionLayer implements Runnable {
 
 
 
-	/* readyToPop: This method tells us whether the head of the priority queue is ready to be
-	 * delivered to the application layer.
-	 */	
-	private boolean readyToPop () {
-		
-		// if this message is not update message, then it is in wrong place
-		if (queue.peek().getType() != 'u') {
-			System.err.println(getTimestamp() + "[ERROR] Wrong message in the queue. Type: " + queue.peek().getType());
-			return true;
+	/* setUpdateLog: Every delivered update is written to this log from now on. The clock is moved
+	 * past the logical time the log recovered, so we do not stamp anything in its past. Has to be
+	 * called before the middleware thread is started.
+	 */
+	public void setUpdateLog (UpdateLog log) {
+		updateLog = log;
+		if (clock.getTime() <= log.getRecoveredTime()) {
+			clock.setTime(log.getRecoveredTime() + 1);
 		}
-		
-		// if we had sent this update, and we have received acknowledgment from all others
-		if ( (queue.peek().getAcks() == otherNodes ) && (queue.peek().getSender() == pid) ) {
-			return true;
-			
-		// if we received this update, and we received acknowledgment from all others but sender,
-		} else if ((queue.peek().getAcks() == otherNodes-1 ) && (queue.peek().getSender() != pid) ) {
-			return true;
-			
-		// if we received this update, and we received acknowledgment from all others, then something is wrong
-		} else if ((queue.peek().getAcks() == otherNodes ) && (queue.peek().getSender() != pid) ) {
-			System.err.println(getTimestamp() + "[WARNING] Possible wrong ack update");
-			return false;
-		
-		// this means the head is not ready to be popped yet.
-		} else {
-			return false;
+		for (int w = 0; w < workers.length; w++) {
+			workers[w].moveClocksPast(log.getRecoveredTime());
 		}
 	}
+	
+	
+	
+	
+	
+	
+	/* setRejoin: We restarted while the others kept running. Instead of the usual connect we
+	 * rejoin them and take the state of the cluster from the donor into our update log, which has
+	 * to be set. The application gets its state from the log after we are ready. Has to be called
+	 * before the middleware thread is started.
+	 */
+	public void setRejoin (boolean r) {
+		rejoin = r;
+	}
+	
+	
+	
+	
+	
+	
+	/* setBatchPolicy: Selects how the default TcpTransport coalesces outbound messages. Has to be
+	 * called before the middleware thread is started.
+	 */
+	public void setBatchPolicy (BatchPolicy p) {
+		batchPolicy = p;
+	}
 
 
 
 
 
 
-	/* getMessages: This method polls the inbound queues of all the sockets
-	 * that we have. 
-	 * Depending upon whether the received message is an acknowledgment or a
-	 * new update, it takes appropriate action.
+	/* multicast and sendTo: How the engines in the workers send their messages. Peers are looked
+	 * up by their position in the config. The peers can be used from any thread.
 	 */
-	private void getMessages (SocketThread[] socketRunnables) {
-		Message mi;
-		
-		for (int i=0; i < socketRunnables.length; i++) {
-			/* we received a message from a sender. We need to check if it
-			 * is acknowledgment or an update or an exit probe.
-			 */
+	
+	void multicast (Message m) {
+		for (int i=0; i < peers.length; i++) {
+			peers[i].putMessage(m);
+		}
+		metrics.sent(m, peers.length);
+	}
+	
+	void sendTo (int index, Message m) {
+		peerAt[index].putMessage(m);
+		metrics.sent(m, 1);
+	}
 
-			// pull all messages from this socket-thread.
-			while ((mi = socketRunnables[i].getMessage()) != null) {
-				
-				//System.out.println(getTimestamp() + "[Middleware] received '" + mi.getType() + "' message from socket " + i);
-				clock.increment();
-				 /* If it is an acknowledgment, we need to increment the ack flag
-				 * of the message.
-				 */
-				if (mi.getType() == 'a') {
-					/* If this is an acknowledgment, we need to find the message
-					 * for which this is an acknowledgment and then increment
-					 * that message's acknowledgment count. This is going to be
-					 * ugly
-					 */
-					processAckMessage(mi);
-					
-				} else if (mi.getType() == 'u') {
-					/* If it is an update message, we have to multicast an acknowledgment,
-					 * do the clock adjustment if necessary, and then put the message in
-					 * the queue
-					 */
-					processUpdateMessage(mi, socketRunnables);
-
-				} else if (mi.getType() == 'e') {
-					/* If it is an exit request, check if we are ready to let other people exit. If so, do nothing.
-					 * when the timer of the other node runs off, it will exit.
-					 * If we want others to wait, just multicast a poking message asking them to wait.
-					 */
-					//System.out.println(getTimestamp() + "[Middleware] Process " + mi.getSender() + " asking permission to exit");
-					if (! letExit) {
-						clock.increment();
-						for (int j=0; j < socketRunnables.length; j++) {
-							//System.out.println(getTimestamp() + "[Middleware] Requesting process " + mi.getSender() + " to wait");
-							Message tempM = new Message('p',clock.getTime(),pid);
-							socketRunnables[j].putMessage(tempM);
-						}
-					} else {
-						/* Log saying the particular process has finished. 
-						 * Notice that the remaining node may yet ask it to wait, hence this message CAN appear 
-						 * multiple times.
-						 */
-						//System.out.println(getTimestamp() + "[Middleware] Letting process " + mi.getSender() + " exit");
-						//System.out.println(getTimestamp() + "[Middleware] P" + mi.getSender() + " finished");
-						//logger.log("[Middleware] P" + mi.getSender() + " finished");
-						logger.log("P" + mi.getSender() + " finished");
+
+
+
+
+
+	/* publish: Called by a worker with the batch it delivered in a round. The batch is appended
+	 * to the update log and committed with a single sync, then given to the listeners, or to the
+	 * queue towards the application if nobody subscribed. The workers publish one at a time, so
+	 * the log has the updates in the order the application gets them.
+	 */
+	
+	void publish (List<Message> delivered) {
+		synchronized (publishLock) {
+			metrics.delivered(delivered.size());
+			for (int i = 0; i < delivered.size(); i++) {
+				deliveredFrom[config.indexOf(delivered.get(i).getSender())]++;
+			}
+			if (exitFlag) {
+				events.signal();		// we may be counting the updates of the others to exit
+			}
+			if (updateLog != null) {
+				try {
+					for (int i = 0; i < delivered.size(); i++) {
+						updateLog.append(delivered.get(i));
 					}
-					
-				} else if (mi.getType() == 'p') {
-					/* If we get a poking message, we need to wait. 
-					 * Notice that the pocking message may be for other nodes exit request. But if he needs to wait,
-					 * so do we.
-					 */
-					//System.out.println(getTimestamp() + "[Middleware] Process " + mi.getSender() + " needs us to wait");
-					
-					exitOk = false;		// this doesnt mean that we do not let others exit :)
-				}		
+					updateLog.commit();
+				} catch (IOException e) {
+					System.err.println(getTimestamp() + "[ERROR] Could not write the update log");
+					e.printStackTrace();
+				}
+			}
+			if (listeners.isEmpty()) {
+				for (int i = 0; i < delivered.size(); i++) {
+					mid2app.offer(delivered.get(i));		// unbounded, never waits under publishLock
+				}
+			} else {
+				List<Message> batch = Collections.unmodifiableList(new ArrayList<Message>(delivered));
+				for (DeliveryListener l : listeners) {
+					try {
+						l.deliver(batch);
+					} catch (RuntimeException e) {
+						System.err.println(getTimestamp() + "[ERROR] Delivery listener failed");
+						e.printStackTrace();
+					}
+				}
 			}
 		}
 	}
@@ -462,46 +546,15 @@ public class DistributionLayer implements Runnable {
 
 
 
-	/* processAckMessage: This method takes an acknowledgment message and does following:
-	 * 		1. Finds out what message is the acknowledgment for
-	 * 		2. Increment the acknowledgment counter of the message
-	 * 		3. If there is no message for which the acknowledgment is received, then we
-	 * 		   must wait for it to arrive. Put the acknowledgment in its own linked list.
-	 */
-		
-	private void processAckMessage (Message m) {
-		Message temp;
-		Iterator<Message> queueIterator = queue.iterator();
-		int a = 0;						// counter of messages for this acknowledgment is identified. (Should go to 1)
-		
-		/* This is not efficient. We have to iterate over entire queue. If queue's 'contains()'
-		 * method would have given a way to match a particular field of the object in the queue, we could
-		 * have used that and put the message in acknowledgment list knowing that someone is there for it.
-		 * For now, this should do. We can remove it altogether (I think) but just to be safe..
-		 */
-		while (queueIterator.hasNext()) {
-			temp = queueIterator.next();
-			if (temp.getTimestamp() == m.getAckFor() ) {
-				//System.out.println(getTimestamp() + "[Middleware] Updated ack counter for message with sendtime " + temp.getTimestamp() + " ack time: " + m.getTimestamp());
-				temp.incrementAck();
-				//System.out.println(getTimestamp() + "[Middleware] New counter is " + temp.getAcks());
-				a++;
+	/* workersIdle: True if no worker has anything left to deliver */
+	
+	private boolean workersIdle () {
+		for (int w = 0; w < workers.length; w++) {
+			if (! workers[w].isIdle()) {
+				return false;
 			}
 		}
-		
-		// we might as well process the acknowledgments who reached here before their respective update messages
-		deliverMessages();
-		
-		/* now check how many update messages we matched this acknowledgment to. Lamport's clock should make sure that
-		 * the match is always 1.
-		 */
-		if (a < 1) {
-			//System.out.println(getTimestamp() + "[Middleware] Queuing ack for " + m.getAckFor());
-			ackList.add(m.getAckFor());
-		} else if (a > 1) {
-			System.err.println(getTimestamp() + "[WARNING] potential acknowledgment update for multiple messages");
-		}
-		
+		return true;
 	}
 
 
@@ -509,46 +562,42 @@ public class DistributionLayer implements Runnable {
 
 
 
-	/* processUpdateMessage: This method takes an update message and does following:
-	 * 		1. adjust the logical clock if necessary
-	 * 		2. Multicast an acknowledgment
-	 * 		3. Add the message to the ordered queue 
+	/* sendControl: Stamps a termination message with our clock and sends it to every node.
+	 * The count rides in the ack vector.
 	 */
-		
-	private void processUpdateMessage (Message mi, SocketThread[] socketRunnables) {
-		
-		/* Check if we need to adjust our clock. If so, do it */
-		if (clock.getTime() <= mi.getTimestamp()) {
-			clock.setTime( Math.ceil(mi.getTimestamp()) + 1);
-		}
-		
-		
-		if (mi.getAcks() != 0) {	// received message should not have acknowledgment count anything but 0
-			System.err.println("[ERROR] Received message with ack count " + mi.getAcks());
-		}
-		
-		// increment the clock
+	
+	private void sendControl (char type, long count) {
 		clock.increment();
-		
-		/* Now multicast an acknowledgment */
-		for (int j=0; j < socketRunnables.length; j++) {
-			//System.out.println(">>> Sending ack for " + mi.getTimestamp() + " ackTime: " + clock.getTime());
-			
-			Message tempM = new Message('a',clock.getTime(),pid);
-			tempM.setAckFor(mi);
-			socketRunnables[j].putMessage(tempM);
+		Message m = new Message(type,clock.getTime(),pid);
+		m.setAcks(new long[] {count});
+		for (int i=0; i < peers.length; i++) {
+			peers[i].putMessage(m);
 		}
-		
-		/* If acknowledgment for this message is already here, we might as well pull it out. */
-		while (ackList.remove(mi.getTimestamp())) {	
-			mi.incrementAck();
-			//System.out.println("removing ack for recent message " + mi.getTimestamp() + " new counter " + mi.getAcks());
+		metrics.sent(m, peers.length);
+	}
+	
+	/* deliveredAll: True if every node told us how many updates it sent and we delivered that
+	 * many of each
+	 */
+	
+	private boolean deliveredAll () {
+		synchronized (publishLock) {
+			for (int i = 0; i < numNodes; i++) {
+				if (sentBy[i] < 0 || deliveredFrom[i] != sentBy[i]) {
+					return false;
+				}
+			}
 		}
-		
-		//System.out.println(getTimestamp() + "Adding '" + mi.getType() + "'to priority queue");
-		queue.add(mi);
-		deliverMessages();
-		
+		return true;
+	}
+	
+	private boolean allFinished () {
+		for (int i = 0; i < numNodes; i++) {
+			if (! finished[i]) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 
@@ -556,44 +605,18 @@ public class DistributionLayer implements Runnable {
 
 
 
-	/* sendMessages: This method polls the outbound queue and if it
-	 * finds a message there, then it puts it outbound queue of every
-	 * socket we are handling
-	 */
+	/* stopWorkers: Tells the workers to exit and waits for them */
 	
-	private void sendMessages (SocketThread[] socketRunnables) {
-		Message m;
-				
-		// Check if we have a message to send
-		while ((m = app2mid.poll()) != null) {
-			
-			// set the timestamp on this message
-			clock.increment();
-			m.setTime(clock.getTime());
-			//System.out.println(getTimestamp() + "[Middleware] sending '" + m.getType() + "' message stamped " + m.getTimestamp());
-			// and send it to each socket thread
-			for (int i=0; i < socketRunnables.length; i++) {
-				
-				
-				/* Create a new message object here. Otherwise, only a reference will be passed. This means,
-				 * all the socket threads and the priority queue will have the same object's reference. This
-				 * means that if an acknowledgment for this message comes before the remaining socket thread 
-				 * can send this message, the acknowledgment counter increment will reflect in that socket thread's 
-				 * queue thus resulting in message sent with acknowledgment count 1. This will no doubt baffle
-				 * the receiving guy cause it will receive more acknowledgments than it is supposed to receive.
-				 * This bug took so many precious hours to debug with the help of log messages :'(
-				 */
-				Message t = new Message(m.getType(),m.getTimestamp(),m.getSender());
-				t.setUpdate(m.getUpdate());
-				socketRunnables[i].putMessage(t);
-			}
-			
-			if (m.getType() == 'u') {
-				// now put the message in the priority queue
-				//System.out.println(getTimestamp() + "Adding '" + m.getType() + "'to priority queue");
-				queue.add(m);
+	private void stopWorkers () {
+		for (int w = 0; w < workers.length; w++) {
+			workers[w].setExitFlag();
+		}
+		for (int w = 0; w < workerThreads.length; w++) {
+			try {
+				workerThreads[w].join();
+			} catch (InterruptedException e) {
+				System.err.println(getTimestamp() + "[ERROR] Interrupted while waiting for worker " + w + " to exit");
 			}
-			
 		}
 	}
 
@@ -601,10 +624,24 @@ public class DistributionLayer implements Runnable {
 
 
 
-	/* setExitFlag: Sets exitFlag for this object */
+
+	/* route: Hands a message to the worker of its instrument */
 	
-	public void setExitFlag () {
-		exitFlag = true;
+	private void route (Message m, boolean fromApplication) {
+		int inst = m.getInstrument();
+		if (inst < 0 || inst >= numInstruments) {
+			System.err.println(getTimestamp() + "[ERROR] Message for unknown instrument " + inst + " from P" + m.getSender());
+			if (fromApplication) {
+				window.release(1);		// it will never be delivered
+			}
+			return;
+		}
+		DomainWorker w = workers[inst % workers.length];
+		if (fromApplication) {
+			w.submit(m);
+		} else {
+			w.receive(m);
+		}
 	}
 
 
@@ -612,192 +649,581 @@ public class DistributionLayer implements Runnable {
 
 
 
-	/* createClientSockets: This method will return the array of sockets
-	 * It will connect to 'n' servers and return the array having sockets
-	 * to those servers.
+	/* killSockets: This method closes the connections to the other nodes.
+	 * Every node confirmed it has delivered everything, so what may still be on its way
+	 * (late acks) is not needed by anybody. We push out what we have, close the transport,
+	 * which flushes our outbound queues, and pull what came in till then.
 	 */
-	private Socket[] createClientSockets (int n) {
-		Socket[] cliSocks = new Socket[n];
-		
-		/* open the file info.txt first
-		 */
-		FileReader f = null;
-		BufferedReader in = null;
+
+	private void killSockets (Peer[] s) {
+		// first, push all our pending messages out.
+		sendMessages(s);
+		getMessages(s);
+
+		transport.close();
+		getMessages(s);
+	}
+
+
+
+
+
+
+	/* This method is for getting the timestamp. We are not logging anything here, and logger
+	 * has its own timestamp, but error messages need this. so, keep it. 
+	 */
+	private String getTimestamp() {
+		Date date = new Date();
+		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy h:mm:ss a : ");
+		String formattedDate = sdf.format(date);
+		return formattedDate; // 09/01/2014 4:48:16 PM
+	}
+
+
+
+
+
+
+	/* getMessages: This method polls the inbound queues of all the sockets
+	 * that we have. 
+	 * Exit announcements and confirmations are handled here, everything else belongs to the
+	 * ordering engine of its instrument. What is handled here is not needed afterwards and goes
+	 * back to the pool of its connection.
+	 */
+	private void getMessages (Peer[] socketRunnables) {
+		Message mi;
 		
-		try {
-			f = new FileReader("info.txt");
-			in = new BufferedReader(f);
-		} catch (IOException e) {
-			System.err.println(getTimestamp() + "[ERROR] Error opening the file info.txt");
-			e.printStackTrace();
-			return null;
+		for (int i=0; i < socketRunnables.length; i++) {
+			// pull all messages from this socket-thread.
+			while ((mi = socketRunnables[i].getMessage()) != null) {
+				if (holding >= 0 && socketRunnables[i] == peerAt[holding]) {
+					held.add(mi);
+					continue;
+				}
+				handle(mi);
+			}
 		}
+	}
+
+	/* handle: we received a message from a sender. We need to check if it
+	 * is acknowledgment or an update or a termination message.
+	 */
+	private void handle (Message mi) {
+		metrics.received(mi);
 		
-		/* The logic behind pid is, every process having smaller last digit of ip
-		 * address will have smaller pid. So we need to get the our ip to compare
-		 * Here we take meaning of 'digit' as 'number' otherwise numbers like 9 and 10
-		 * will give us problem.
-		 */
-		String[] ipFields = null;
-		try {
-			Socket s = new Socket("google.com", 80);
-			ipFields = s.getLocalAddress().getHostAddress().split("\\.");
-			s.close();
-		} catch (Exception e) {
-			System.err.println(getTimestamp() + "[ERROR] Error while getting our own ip");
-			e.printStackTrace();
+		//System.out.println(getTimestamp() + "[Middleware] received '" + mi.getType() + "' message");
+		clock.increment();
+		if (config.indexOf(mi.getSender()) < 0) {
+			System.err.println(getTimestamp() + "[ERROR] Message from unknown process " + mi.getSender());
+			mi.recycle();
+			return;
 		}
 		
-		int myIpLastDig = Integer.parseInt(ipFields[3]);
-		
-		/* Now read the ips one by one. We are supposed to connect to
-		 * the machines which will have pids lower than us. meaning last digit of ip lower
-		 * than our ip.
-		 */
-		String line;
-		int totalSockets = 0;
-		try {
-			while ((line = in.readLine()) != null) {
-				String[] fields = line.split("\\s+");		// first part is ip, second is port
-				ipFields = fields[0].split("\\.");
-				
-				/* If this machine has last digit larger than us, then we
-				 * can skip this one.
-				 */
-				if (Integer.parseInt(ipFields[3]) >= myIpLastDig ) {
-					continue;
-				}
-				
-				/* otherwise create a socket to this machine and put it in the array we will return */
-				
-				int numAttempts = 10;
-				int connFlag = 0;
-				while (connFlag < numAttempts) {
-					try {
-						cliSocks[totalSockets++] = new Socket(fields[0],Integer.parseInt(fields[1]));
-						break;
-					} catch (ConnectException ce) {
-						// probably server is not up.
-						connFlag++;
-						totalSockets--;
-						Thread.sleep(3000);
-						if (connFlag == 9) {
-							System.err.println("[ERROR] Server connection failed. Check if server is running");
-							in.close();
-							throw ce;
-						}
-					}
-				}
-				//System.out.println(getTimestamp() + "P" + pid + " is connected to (" + fields[0] + ")");
-				//logger.log("[Middleware] P" + pid + " is connected to (" + fields[0] + ":" + fields[1] +  ")");
-				logger.log("P" + pid + " is connected to (" + fields[0] + ":" + fields[1] +  ")");
-			}
+		int from = config.indexOf(mi.getSender());
+		if (mi.getType() == 'e') {
+			/* An exit announcement: the sender is done and tells us how many updates it sent.
+			 * We wait for that many before we confirm.
+			 */
+			//System.out.println(getTimestamp() + "[Middleware] Process " + mi.getSender() + " sent " + mi.getAcks()[0] + " updates");
+			sentBy[from] = mi.getAcks()[0];
+			logger.log("P" + mi.getSender() + " finished");
+			mi.recycle();
 			
-			in.close();
-			if ((totalSockets) != n ) {
-				System.err.println(getTimestamp() + "[ERROR] Connected to unexpected number of servers:" + totalSockets);
-			}
+		} else if (mi.getType() == 'f') {
+			/* A confirmation: the sender delivered every update of the cluster. */
+			finished[from] = true;
+			mi.recycle();
 			
+		} else if (mi.getType() == 'k') {
+			/* A marker: the sender switched to the new connection of a node which rejoins, we are its donor */
+			marker((int) mi.getTimestamp(), from, mi.getAcks()[0]);
+			mi.recycle();
 			
-		} catch (IOException e) {
-			System.err.println(getTimestamp() + "[ERROR] Error reading the file info.txt");
-			e.printStackTrace();
-			return null;
-		} catch (InterruptedException ie) {
-			// nothing here
+		} else if (mi.getType() == 'z') {
+			/* The donor of a node which rejoins sent us all we need about it, its messages can go on */
+			release((int) mi.getTimestamp());
+			mi.recycle();
+			
+		} else {
+			route(mi, false);
 		}
-		
-		//System.out.println(getTimestamp() + "[Middleware] Connected to " + totalSockets + " number of servers");
-		return cliSocks;
 	}
 
 
 
 
 
-	/* createServerSockets: This method takes number of server sockets to
-	 * be created and returns the array of those many sockets after
-	 * accepting the connections on those.
+
+	/* takeRejoined: The nodes which restarted and connected to us again since the last time */
+	
+	private void takeRejoined () {
+		Peer[] back = transport.takeRejoined();
+		if (back == null) {
+			return;
+		}
+		for (int i = 0; i < numNodes; i++) {
+			if (back[i] != null && i != myIndex) {
+				rejoined(i, back[i]);
+			}
+		}
+	}
+	
+	/* rejoined: The node at position x restarted and connected to us again. We take what is left
+	 * on its old connection, switch to the new one while the workers are paused, and tell its
+	 * donor how far we got with its updates. Anything we send after the marker goes to the
+	 * rejoining node directly. What it sends us waits till its donor is done with us.
 	 */
+	private void rejoined (int x, Peer p) {
+		logger.log("P" + config.getId(x) + " rejoined");
+		Peer old = peerAt[x];
+		Message mi;
+		while ((mi = old.getMessage()) != null) {
+			handle(mi);
+		}
+		pauseWorkers();
+		if (donorOf(x) != myIndex) {
+			holding = x;
+			held = new ArrayList<Message>();
+		}
+		peerAt[x] = p;
+		for (int k = 0; k < peers.length; k++) {
+			if (peers[k] == old) {
+				peers[k] = p;
+			}
+		}
+		long latest = latestOf(x);
+		int donor = donorOf(x);
+		if (donor != myIndex) {
+			Message k = new Message('k', x, pid);
+			k.setAcks(new long[] {latest});
+			peerAt[donor].putMessage(k);
+			metrics.sent(k, 1);
+		}
+		resumeWorkers();
+		if (donor == myIndex) {
+			marker(x, myIndex, latest);
+		}
+	}
 	
-	private Socket[] createServerSockets (int num) {
-		
-		FileReader f = null;
-		BufferedReader in = null;
-		ServerSocket s = null;
-		HashMap<String,Integer> ipHash = new HashMap<String,Integer>();
+	/* marker: The node at position 'from' switched to the new connection of the node at position
+	 * x and received its updates up to latest. Once every node but x did, we send x the state.
+	 */
+	private void marker (int x, int from, long latest) {
+		if (joining != x) {
+			joining = x;
+			marked = new boolean[numNodes];
+			joinLatest = -1;
+		}
+		marked[from] = true;
+		joinLatest = Math.max(joinLatest, latest);
+		for (int i = 0; i < numNodes; i++) {
+			if (i != x && ! marked[i]) {
+				return;
+			}
+		}
+		joining = -1;
+		sendState(x, joinLatest);
+	}
+	
+	/* release: The end marker of the donor of the node at position x came. What the engines need
+	 * from it is in the queues of the workers, so the messages of x which we held back can follow.
+	 */
+	private void release (int x) {
+		if (holding != x) {
+			return;
+		}
+		holding = -1;
+		for (int i = 0; i < held.size(); i++) {
+			handle(held.get(i));
+		}
+		held = null;
+	}
+	
+	/* donorOf: The node which sends the state to the node at position x: the first other one */
+	private int donorOf (int x) {
+		return x == 0 ? 1 : 0;
+	}
+	
+	private long latestOf (int x) {
+		long latest = -1;
+		for (int w = 0; w < workers.length; w++) {
+			latest = Math.max(latest, workers[w].getLatest(x));
+		}
+		return latest;
+	}
+	
+	private void pauseWorkers () {
+		for (int w = 0; w < workers.length; w++) {
+			workers[w].pause();
+		}
+	}
+	
+	private void resumeWorkers () {
+		for (int w = 0; w < workers.length; w++) {
+			workers[w].resume();
+		}
+	}
+	
+	
+	
+	
+	
+	
+	/* sendState: We are the donor of the node at position x and everybody has switched to its
+	 * new connection. With our workers paused, what we delivered (our update log), what our
+	 * engines hold and our counts of the exit protocol belong together. The snapshot goes in
+	 * chunks of the parts of a message.
+	 */
+	
+	private void sendState (int x, long latest) {
+		if (updateLog == null) {
+			System.err.println(getTimestamp() + "[ERROR] P" + pid + " keeps no update log to give P" + config.getId(x));
+			return;
+		}
+		pauseWorkers();
 		try {
-			s = new ServerSocket(9746);
-			PriorityQueue<String> ipQ = new PriorityQueue<String>();
-			f = new FileReader("info.txt");
-			in = new BufferedReader(f);
-			String line;
-			while ( (line = in.readLine()) != null ) {
-				ipQ.add(line.split("\\s+")[0]);
+			ArrayList<Message> toNode = new ArrayList<Message>();
+			ArrayList<Message> toOthers = new ArrayList<Message>();
+			for (int w = 0; w < workers.length; w++) {
+				workers[w].writeState(x, latest, toNode, toOthers);
 			}
-			in.close();
-			String connMsg = null;
-			for (int i = 0; ipQ.peek() != null ; i++) {
-				if (i == pid) {
-					//connMsg = "[Middleware] P" + pid + " (" + ipQ.peek() + ") is listening on port 9746";
-					connMsg = "P" + pid + " (" + ipQ.peek() + ") is listening on port 9746";
+			UpdateLog.Checkpoint c;
+			Message[] counts = new Message[3];
+			synchronized (publishLock) {
+				c = updateLog.checkpoint();
+				long[] done = new long[numNodes];
+				for (int i = 0; i < numNodes; i++) {
+					done[i] = finished[i] ? 1 : 0;
 				}
-				ipHash.put(ipQ.peek(), i);
-				logger.log("[P" + i + "] " + ipQ.poll());
+				counts[0] = new Message('n', 0, pid);
+				counts[0].setAcks(deliveredFrom.clone());
+				counts[1] = new Message('n', 1, pid);
+				counts[1].setAcks(sentBy.clone());
+				counts[2] = new Message('n', 2, pid);
+				counts[2].setAcks(done);
 			}
-			logger.log(connMsg);
-			/* All this to print those useless and potentially wrong PIDs */
-			
-			
-			//System.out.println(getTimestamp() + "[Middleware] P" + pid + " (" + InetAddress.getLocalHost().toString() + ") is listening on port 9746");
-			//logger.log("[Middleware] P" + pid + " (" + InetAddress.getLocalHost().getHostAddress() + ") is listening on port 9746");
-			
-			
-			/* now open the file to print those pid and ip pair. The thing is that PID is given from command line. So it can be
-			 * very well be 15 or 15000. Still, as we need to print it before communication (as shown and required in sample logs)
-			 * lets assume they start with 0 and go sequentially.
-			 */
 			
+			for (int i = 0; i < toOthers.size(); i++) {
+				for (int j = 0; j < numNodes; j++) {
+					if (peerAt[j] != null && j != x) {
+						peerAt[j].putMessage(toOthers.get(i));
+					}
+				}
+				metrics.sent(toOthers.get(i), otherNodes - 1);
+			}
+			for (int j = 0; j < numNodes; j++) {
+				if (peerAt[j] != null && j != x) {
+					sendTo(peerAt[j], new Message('z', x, pid));
+				}
+			}
 			
+			Peer to = peerAt[x];
+			Message h = new Message('s', c.index, pid);
+			h.setAcks(new long[] {c.time, c.state != null ? c.state.length : -1, latest});
+			sendTo(to, h);
+			int chunk = 2 * MessageCodec.MAX_PARTS;
+			for (int off = 0; c.state != null && off < c.state.length; off += chunk) {
+				int[] v = new int[(Math.min(chunk, c.state.length - off) + 1) & ~1];	// parts come in pairs
+				System.arraycopy(c.state, off, v, 0, Math.min(chunk, c.state.length - off));
+				Message m = new Message('v', off, pid);
+				m.setParts(v);
+				sendTo(to, m);
+			}
+			for (int i = 0; i < c.updates.size(); i++) {
+				Message u = c.updates.get(i);
+				Message m = new Message('l', u.getTimestamp(), u.getSender());
+				m.setInstrument(u.getInstrument());
+				m.setUpdate(u.getUpdate());
+				sendTo(to, m);
+			}
+			for (int i = 0; i < counts.length; i++) {
+				sendTo(to, counts[i]);
+			}
+			for (int i = 0; i < toNode.size(); i++) {
+				sendTo(to, toNode.get(i));
+			}
+			sendTo(to, new Message('z', 0, pid));
+			logger.log("Sent the state to P" + config.getId(x) + ": snapshot of update " + c.index + " and " + c.updates.size() + " updates after it");
 		} catch (IOException e) {
-			System.err.println(getTimestamp() + "[ERROR] Could not listen to port 9746");
-			return null;
+			System.err.println(getTimestamp() + "[ERROR] Could not read the update log for P" + config.getId(x));
+			e.printStackTrace();
+		} finally {
+			resumeWorkers();
 		}
-				
-		Socket[] servSocks = new Socket[num];
-		
-		for (int i=0; i < num; i++) {
-			try {
-				/* Accept a connection and put the socket in the array. */
-				servSocks[i] = s.accept();
-				//int b = i + 1;		// this is sad, but to display the message, I need (i+1). and I cant just put that expression in println.
-				//System.out.println(getTimestamp() + "[Middleware] P" + pid + " is connected from "+ b + " process(es)");	// correct this message
-				String c = servSocks[i].getInetAddress().toString().replace('/',' ').trim();
-				//logger.log("[Middleware] P" + pid + " is connected from P"+ ipHash.get(c)+ " (" + c + ") process(es)");	// correct this message
-				logger.log("P" + pid + " is connected from P"+ ipHash.get(c)+ " (" + c + ")");	// correct this message
-			} catch (IOException e) {
-				System.err.println(getTimestamp() + "[ERROR] Accept failed");
-				e.printStackTrace();
-				try {
-					s.close();
-				} catch (IOException e1) {
-					System.err.println(getTimestamp() + "[ERROR] Could not close server socket");
-					e1.printStackTrace();
-					return null;
+	}
+	
+	private void sendTo (Peer p, Message m) {
+		p.putMessage(m);
+		metrics.sent(m, 1);
+	}
+	
+	
+	
+	
+	
+	
+	/* catchUp: We rejoin. Waits for the state from our donor and takes it in before our workers
+	 * start. Everything else which comes in meanwhile, from the donor before and after the state
+	 * too, is kept in early in the order it came, to be handled once the workers run. Returns
+	 * false if we could not take the state.
+	 */
+	
+	private boolean catchUp (List<Message> early) {
+		int donor = donorOf(myIndex);
+		logger.log("Waiting for the state of the cluster from P" + config.getId(donor));
+		long start = System.nanoTime();
+		UpdateLog.Checkpoint c = null;		// set once the header came
+		long latest = -1;
+		boolean done = false;
+		try {
+			while (! done) {
+				for (int i = 0; i < numNodes; i++) {
+					Message mi;
+					while (peerAt[i] != null && (mi = peerAt[i].getMessage()) != null) {
+						if (i != donor || done || (c == null && mi.getType() != 's')) {
+							early.add(mi);
+							continue;
+						}
+						metrics.received(mi);
+						if (mi.getType() == 's') {
+							c = new UpdateLog.Checkpoint();
+							c.index = mi.getTimestamp();
+							c.time = mi.getAcks()[0];
+							c.state = mi.getAcks()[1] < 0 ? null : new int[(int) mi.getAcks()[1]];
+							latest = mi.getAcks()[2];
+						} else if (mi.getType() == 'v') {
+							int off = (int) mi.getTimestamp();
+							System.arraycopy(mi.getParts(), 0, c.state, off, Math.min(mi.getParts().length, c.state.length - off));
+						} else if (mi.getType() == 'l') {
+							Message u = new Message('u', mi.getTimestamp(), mi.getSender());
+							u.setInstrument(mi.getInstrument());
+							u.setUpdate(mi.getUpdate());
+							c.updates.add(u);
+						} else if (mi.getType() == 'n') {
+							long[] v = mi.getAcks();
+							for (int k = 0; k < numNodes; k++) {
+								if (mi.getTimestamp() == 0) {
+									deliveredFrom[k] = v[k];
+								} else if (mi.getTimestamp() == 1) {
+									sentBy[k] = v[k];
+								} else {
+									finished[k] = v[k] != 0;
+								}
+							}
+						} else if (mi.getType() == 'z') {
+							done = true;
+						} else if (mi.getInstrument() >= 0 && mi.getInstrument() < numInstruments) {
+							workers[mi.getInstrument() % workers.length].readState(mi);
+						}
+					}
+				}
+				if (! done) {
+					waitForWork();
 				}
-				return null;
 			}
-		}
-		
-		try {
-			s.close();
+			updateLog.install(c);
 		} catch (IOException e) {
-			System.err.println(getTimestamp() + "[ERROR] Could not close server socket");
+			System.err.println(getTimestamp() + "[ERROR] Could not install the state of the cluster in the update log");
 			e.printStackTrace();
+			return false;
+		} catch (IllegalStateException e) {
+			System.err.println(getTimestamp() + "[ERROR] " + e.getMessage());
+			return false;
 		}
 		
-		
-		//System.out.println(getTimestamp() + "[Middleware] Done creating server sockets");
-		return servSocks;
+		/* Whatever we send from now on is stamped past what any node got from us before */
+		long past = Math.max(latest, updateLog.getRecoveredTime());
+		if (clock.getTime() <= past) {
+			clock.setTime(past + 1);
+		}
+		for (int w = 0; w < workers.length; w++) {
+			workers[w].moveClocksPast(past);
+		}
+		logger.log("Caught up from P" + config.getId(donor) + ": snapshot of update " + c.index + " and " + c.updates.size() + " updates after it in " + (System.nanoTime() - start) / 1000000 + " ms");
+		return true;
+	}
+	
+	
+	
+	
+	
+	
+	/* sendMessages: This method polls the outbound queue. Updates are handed to the
+	 * worker of their instrument, whose engine sends them the way its protocol needs. Anything
+	 * else is stamped and put in the outbound queue of every socket we are handling.
+	 */
+	
+	private void sendMessages (Peer[] socketRunnables) {
+		Message m;
+				
+		// Check if we have a message to send
+		while ((m = app2mid.poll()) != null) {
+			
+			if (m.getType() == 'u') {
+				if (m.getSubmitTime() == 0) {
+					m.setSubmitTime(System.nanoTime());	// put straight in the queue, not through send()
+				}
+				window.overdraw();		// we can not wait for our own deliveries
+				route(m, true);
+				continue;
+			}
+			
+			// set the timestamp on this message
+			clock.increment();
+			m.setTime(clock.getTime());
+			//System.out.println(getTimestamp() + "[Middleware] sending '" + m.getType() + "' message stamped " + m.getTimestamp());
+			// and send it to each socket thread. Nobody changes it after this, so share it.
+			for (int i=0; i < socketRunnables.length; i++) {
+				socketRunnables[i].putMessage(m);
+			}
+			metrics.sent(m, socketRunnables.length);
+		}
+	}
+
+
+
+
+
+
+	/* send: This is how the application hands a message to the middleware. Updates take a credit
+	 * of the window, waiting for one if all are in flight, and go straight to the worker of their
+	 * instrument. Anything else is put in the queue from application and the middleware thread is
+	 * woken up.
+	 */
+	
+	public void send (Message m) {
+		if (m.getType() == 'u') {
+			takeCredit();
+			m.setSubmitTime(System.nanoTime());
+			route(m, true);
+			return;
+		}
+		app2mid.put(m);
+		events.signal();
+	}
+
+
+
+
+
+	/* submit: Sends an update of the instrument to all the nodes. The future completes with the
+	 * update (stamped by the ordering engine) when it is delivered in the total order of the
+	 * instrument, after the batch it is in was handed to the application. If the update was
+	 * coalesced, that is the merged update and this one is among its parts. It is completed by a
+	 * worker thread, so anything heavy should be chained with the async methods of CompletableFuture.
+	 */
+	
+	public CompletableFuture<Message> submit (int instrument, int[] update) {
+		checkInstrument(instrument);
+		takeCredit();
+		return enqueue(instrument, update);
+	}
+	
+	/* submit: An update of instrument 0, for applications which have only one */
+	public CompletableFuture<Message> submit (int[] update) {
+		return submit(0, update);
+	}
+	
+	/* trySubmit: Like submit(), but does not wait if the window is full. The future then fails
+	 * with a RejectedExecutionException right away and the update is not sent.
+	 */
+	public CompletableFuture<Message> trySubmit (int instrument, int[] update) {
+		checkInstrument(instrument);
+		if (! window.tryAcquire()) {
+			metrics.rejected();
+			CompletableFuture<Message> f = new CompletableFuture<Message>();
+			f.completeExceptionally(new RejectedExecutionException(window.getSize() + " updates of P" + pid + " in flight"));
+			return f;
+		}
+		return enqueue(instrument, update);
+	}
+	
+	private void checkInstrument (int instrument) {
+		if (instrument < 0 || instrument >= numInstruments) {
+			throw new IllegalArgumentException("Unknown instrument " + instrument);
+		}
+	}
+	
+	/* enqueue: Hands an update which already has its credit to the worker of its instrument */
+	private CompletableFuture<Message> enqueue (int instrument, int[] update) {
+		Message m = new Message('u',0,pid);
+		m.setInstrument(instrument);
+		m.setUpdate(update);
+		m.setSubmitTime(System.nanoTime());
+		CompletableFuture<Message> f = new CompletableFuture<Message>();
+		futures.put(m, f);
+		route(m, true);
+		return f;
+	}
+	
+	/* takeCredit: Takes a credit of the window, waits till one comes back if there is none. The
+	 * time we waited is what the metrics show as backpressure.
+	 */
+	private void takeCredit () {
+		if (window.tryAcquire()) {
+			return;
+		}
+		long start = System.nanoTime();
+		window.acquireUninterruptibly();
+		metrics.throttled(System.nanoTime() - start);
+	}
+	
+	/* returnCredits: Called by a worker for our updates it delivered */
+	void returnCredits (int n) {
+		window.release(n);
+	}
+	
+	public int getInstruments () {
+		return numInstruments;
+	}
+	
+	/* getMetrics: The measurements of this node, the same ones it shows over JMX */
+	public MiddlewareMetrics getMetrics () {
+		return metrics;
+	}
+
+
+
+
+
+	/* subscribe and unsubscribe: While there is a listener, delivered updates are pushed to the
+	 * listeners in batches instead of being put in the queue towards the application. The
+	 * control messages (ready and exit) always go to the queue.
+	 */
+	
+	public void subscribe (DeliveryListener l) {
+		listeners.add(l);
+	}
+	
+	public void unsubscribe (DeliveryListener l) {
+		listeners.remove(l);
+	}
+
+
+
+
+
+	/* drainTo: Waits up to the timeout for something in the queue towards the application and
+	 * moves everything there is into c. Returns the number of messages moved, 0 on timeout.
+	 * A whole batch is taken at once, so the application does not need to poll and sleep.
+	 */
+	
+	public int drainTo (Collection<? super Message> c, long timeout, TimeUnit unit) throws InterruptedException {
+		Message m = mid2app.poll(timeout, unit);
+		if (m == null) {
+			return 0;
+		}
+		c.add(m);
+		return 1 + mid2app.drainTo(c);
+	}
+
+
+
+
+
+	/* setExitFlag: Sets exitFlag for this object */
+	
+	public void setExitFlag () {
+		exitFlag = true;
 	}
 }
@@ -0,0 +1,361 @@
+/* This class is runnable. It runs the ordering domains of some of the instruments. Every instrument
+ * is ordered on its own: it has its own logical clock and its own OrderingEngine, so updates of
+ * one instrument never wait for the acknowledgments of another. The instruments are spread over a
+ * few of these workers so that they are processed on several cores at once.
+ * The middleware thread keeps the sockets. It hands every received message and every update of the
+ * application to the worker of its instrument; the worker drives the engines and sends their
+ * messages straight to the peers, which are shared by all the workers. What the engines deliver in
+ * one round goes to the application as one batch through DistributionLayer.publish().
+ * If coalescing is on, updates of the application are merged by an UpdateCoalescer per instrument
+ * before they reach the engine.
+ * While a node rejoins, the middleware pauses the workers between two rounds to switch connections
+ * and to take the state of the engines (see DistributionLayer).
+ */
+
+package middleware;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+class DomainWorker implements Runnable {
+
+	private static final long IDLE_WAIT = 1000;	// ms, just a safety net like in the middleware
+	private static final int QUEUE_CAPACITY = 16384;	// messages in each of our queues
+
+	private DistributionLayer layer;
+	private int pid;
+	private Domain[] domains;			// by instrument, null for the instruments of other workers
+	private ArrayList<Domain> mine;
+	private SpscRingBuffer<Message> received;	// from the peers, put by the middleware thread
+	private MpscRingBuffer<Message> submitted;	// from our application, any of its threads
+	private ConcurrentHashMap<Message, CompletableFuture<Message>> futures;
+	private EventSignal signal;
+	private EventSignal middlewareEvents;
+	private ArrayList<Message> delivered;		// delivered in this round, not yet published
+	private ArrayList<CompletableFuture<Message>> completed;	// completed in this round,
+	private ArrayList<Message> completedUpdates;			// with the updates they complete with
+	private LongQueue completedTimes;				// and the times they were submitted
+	private MiddlewareMetrics metrics;
+	private volatile int pendingUpdates;		// in the engines and the coalescers, after the last round
+	private volatile boolean busy;			// set while a round is running
+	private volatile boolean idle;			// all the engines were idle at the end of the last round
+	private volatile boolean exitFlag;
+	private volatile boolean pauseRequested;
+	private CountDownLatch paused;			// opened by us when we stopped for pause()
+	private CountDownLatch resumed;			// opened by resume()
+
+
+
+	/* One instrument: its clock, its engine and our updates of it which are not delivered yet */
+	private class Domain implements OrderingEngine.Context {
+		int instrument;
+		LogicalClock clock;
+		OrderingEngine engine;
+		ArrayDeque<CompletableFuture<Message>> ownUpdates;
+		LongQueue ownTimes;			// when each of those was submitted
+		UpdateCoalescer coalescer;		// null if updates are not merged
+		int oldOwn;				// updates of ours in the state we rejoined with, not delivered yet
+
+		public void multicast (Message m) {
+			m.setInstrument(instrument);
+			layer.multicast(m);
+		}
+
+		public void sendTo (int index, Message m) {
+			m.setInstrument(instrument);
+			layer.sendTo(index, m);
+		}
+
+		public void deliver (Message m) {
+			m.setInstrument(instrument);
+			delivered.add(m);
+			if (m.getSender() == pid && oldOwn > 0) {
+				oldOwn--;		// sent before we restarted, they come first and nobody waits for them
+			} else if (m.getSender() == pid) {
+				/* our own updates of an instrument are delivered in the order we sent them. A
+				 * coalesced one completes the futures of all the updates it was merged from.
+				 */
+				for (int k = m.getContributions(); k > 0; k--) {
+					CompletableFuture<Message> f = ownUpdates.poll();
+					long t = ownTimes.poll(0);
+					if (f != null) {
+						completed.add(f);
+						completedUpdates.add(m);
+						completedTimes.add(t);
+					}
+				}
+			}
+		}
+
+		public void ackRtt (int index, long nanos) {
+			metrics.ackRtt(index, nanos);
+		}
+	}
+
+
+
+	DomainWorker (DistributionLayer layer, int pid, int step, ClusterConfig config, String ordering, int numInstruments, int[] instruments, long coalesceWindow, int coalesceMax, ConcurrentHashMap<Message, CompletableFuture<Message>> futures, EventSignal middlewareEvents, MiddlewareMetrics metrics) {
+		this.layer = layer;
+		this.metrics = metrics;
+		this.pid = pid;
+		this.futures = futures;
+		this.middlewareEvents = middlewareEvents;
+		domains = new Domain[numInstruments];
+		mine = new ArrayList<Domain>();
+		for (int i = 0; i < instruments.length; i++) {
+			Domain d = new Domain();
+			d.instrument = instruments[i];
+			d.clock = new LogicalClock(pid, step);
+			d.engine = DistributionLayer.createEngine(ordering, pid, config, d.clock, d);
+			d.ownUpdates = new ArrayDeque<CompletableFuture<Message>>();
+			d.ownTimes = new LongQueue();
+			d.coalescer = coalesceWindow < 0 ? null : new UpdateCoalescer(coalesceWindow, coalesceMax);
+			domains[d.instrument] = d;
+			mine.add(d);
+		}
+		received = new SpscRingBuffer<Message>(QUEUE_CAPACITY);
+		submitted = new MpscRingBuffer<Message>(QUEUE_CAPACITY);
+		signal = new EventSignal();
+		delivered = new ArrayList<Message>();
+		completed = new ArrayList<CompletableFuture<Message>>();
+		completedUpdates = new ArrayList<Message>();
+		completedTimes = new LongQueue();
+		pendingUpdates = 0;
+		busy = false;
+		idle = true;
+		exitFlag = false;
+	}
+
+
+
+
+
+	private String getTimestamp() {
+		Date date = new Date();
+		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy h:mm:ss a : ");
+		String formattedDate = sdf.format(date);
+		return formattedDate; // 09/01/2014 4:48:16 PM
+	}
+
+
+
+
+
+	/* The methods below are called by the middleware thread (and submit() by the application) */
+
+	void receive (Message m) {
+		received.put(m);
+		signal.signal();
+	}
+
+	void submit (Message m) {
+		submitted.put(m);
+		signal.signal();
+	}
+
+	void setExitFlag () {
+		exitFlag = true;
+		signal.signal();
+	}
+
+	/* moveClocksPast: Has to be called before the thread is started */
+	void moveClocksPast (long t) {
+		for (Domain d : mine) {
+			if (d.clock.getTime() <= t) {
+				d.clock.setTime(t + 1);
+			}
+		}
+	}
+
+	/* pause and resume: pause() returns once we finished a round which started after it was
+	 * called, so everything handed to us before has been handled, and we stay stopped till
+	 * resume(). In between the middleware thread may use the engines.
+	 */
+	void pause () {
+		paused = new CountDownLatch(1);
+		resumed = new CountDownLatch(1);
+		pauseRequested = true;
+		signal.signal();
+		awaitUninterruptibly(paused);
+	}
+
+	void resume () {
+		pauseRequested = false;
+		resumed.countDown();
+	}
+
+	private static void awaitUninterruptibly (CountDownLatch l) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				l.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();	// for whoever comes next
+		}
+	}
+
+	/* getLatest and writeState: For a node which rejoins, see OrderingEngine. Only while we are
+	 * paused. The messages of an engine are for its instrument.
+	 */
+	long getLatest (int index) {
+		long latest = -1;
+		for (Domain d : mine) {
+			latest = Math.max(latest, d.engine.getLatest(index));
+		}
+		return latest;
+	}
+
+	void writeState (int index, long latest, List<Message> toNode, List<Message> toOthers) {
+		for (Domain d : mine) {
+			int n = toNode.size();
+			int k = toOthers.size();
+			d.engine.writeState(index, latest, toNode, toOthers);
+			for (int i = n; i < toNode.size(); i++) {
+				toNode.get(i).setInstrument(d.instrument);
+			}
+			for (int i = k; i < toOthers.size(); i++) {
+				toOthers.get(i).setInstrument(d.instrument);
+			}
+		}
+	}
+
+	/* readState: Has to be called before the thread is started */
+	void readState (Message m) {
+		Domain d = domains[m.getInstrument()];
+		d.engine.readState(m);
+		if (m.getSender() == pid && m.getUpdate() != null) {
+			d.oldOwn++;
+		}
+	}
+
+	/* isIdle: True if nothing waits in our queues or in the engines. The queues are checked
+	 * before the busy flag: a message we already took from a queue keeps busy set till the
+	 * round it is handled in is over.
+	 */
+	boolean isIdle () {
+		return received.isEmpty() && submitted.isEmpty() && ! busy && idle;
+	}
+
+	/* For the metrics: messages waiting for us, and updates waiting for delivery in our domains */
+	int getQueueDepth () {
+		return received.size() + submitted.size();
+	}
+
+	int getPendingUpdates () {
+		return pendingUpdates;
+	}
+
+
+
+
+
+	/* The run method handles rounds like the main loop of the middleware: take everything from
+	 * the queues, close the merges which are due, let the engines send what they held back,
+	 * publish what got delivered, and wait for more (or for the next merge to close).
+	 */
+	public void run () {
+		while (! exitFlag) {
+			boolean pausing = pauseRequested;
+			busy = true;
+			Message m;
+			while ((m = received.poll()) != null) {
+				Domain d = domains[m.getInstrument()];
+				if (! d.engine.receive(m)) {
+					System.err.println(getTimestamp() + "[ERROR] Unknown message type '" + m.getType() + "' from P" + m.getSender());
+				}
+			}
+			long now = System.nanoTime();
+			while ((m = submitted.poll()) != null) {
+				Domain d = domains[m.getInstrument()];
+				CompletableFuture<Message> f = futures.remove(m);
+				if (f == null) {
+					f = new CompletableFuture<Message>();	// send() has nobody waiting
+				}
+				d.ownTimes.add(m.getSubmitTime());
+				if (d.coalescer == null) {
+					d.ownUpdates.add(f);
+					d.engine.submit(m);
+				} else if (d.coalescer.add(m, f, now)) {
+					d.engine.submit(d.coalescer.take(d.ownUpdates));
+				}
+			}
+			boolean allIdle = true;
+			long wait = IDLE_WAIT;
+			int pending = 0;
+			for (Domain d : mine) {
+				if (d.coalescer != null && ! d.coalescer.isEmpty()) {
+					if (d.coalescer.isDue(now)) {
+						d.engine.submit(d.coalescer.take(d.ownUpdates));
+					} else {
+						allIdle = false;
+						pending += d.coalescer.size();
+						wait = Math.min(wait, (d.coalescer.getDeadline() - now + 999999) / 1000000);
+					}
+				}
+				d.engine.flush();
+				allIdle &= d.engine.isIdle();
+				pending += d.engine.getPendingCount();
+			}
+			pendingUpdates = pending;
+			metrics.pending(pending);
+			publish();
+			boolean wasIdle = idle;
+			idle = allIdle;
+			busy = false;
+			if (allIdle && ! wasIdle) {
+				middlewareEvents.signal();	// it may be waiting for us to exit
+			}
+			if (pausing) {
+				paused.countDown();
+				awaitUninterruptibly(resumed);
+				continue;
+			}
+
+			try {
+				signal.await(wait);
+			} catch (InterruptedException e) {
+				// the exit flag is checked anyway
+			}
+		}
+	}
+
+
+
+
+
+	/* publish: Gives back the credits of our own updates in the batch of this round, hands the
+	 * batch to the application, then completes their futures. The credits go first, so an
+	 * application waiting in submit() never waits for the hand-off.
+	 */
+	private void publish () {
+		if (delivered.isEmpty()) {
+			return;
+		}
+		if (! completed.isEmpty()) {
+			layer.returnCredits(completed.size());
+		}
+		layer.publish(delivered);
+		delivered.clear();
+		long now = System.nanoTime();
+		for (int i = 0; i < completed.size(); i++) {
+			long t = completedTimes.poll(0);
+			if (t != 0) {
+				metrics.submitToDeliver(now - t);
+			}
+			completed.get(i).complete(completedUpdates.get(i));
+		}
+		completed.clear();
+		completedUpdates.clear();
+	}
+}
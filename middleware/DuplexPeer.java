@@ -0,0 +1,284 @@
+/* This class is one peer connection served by two threads of its own: a reader which blocks on
+ * the socket and a writer which blocks on the outbound queue. Unlike SocketThread, which reads and
+ * writes in turns, neither direction waits for the other: a message put by the middleware is
+ * written at once, not after the read timed out, and reads go on while a large batch goes out.
+ * Nothing polls, so there is no read timeout at all.
+ * The threads are virtual threads if the JVM has them (Java 21, or 19 and 20 with preview
+ * features enabled), otherwise platform threads. A blocked virtual thread costs a few hundred
+ * bytes of heap instead of a stack, so two per peer stay cheap as the cluster grows.
+ * It always uses the binary frames of MessageCodec.
+ * If the other node goes away, putMessage() drops from then on, and the writer drops whatever it
+ * still takes till close().
+ */
+
+package middleware;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+class DuplexPeer implements Peer {
+
+	private static final int BUFFER_SIZE = 64 * 1024;		// holds several frames of the largest size
+	private static final Message CLOSE = new Message('c',0,-1);	// tells the writer to finish, never sent
+	private static final Method OF_VIRTUAL;		// Thread.ofVirtual(), null if the JVM has no virtual threads
+	private static final Method NAME;		// Thread.Builder.name(String)
+	private static final Method UNSTARTED;		// Thread.Builder.unstarted(Runnable)
+	private static final boolean VIRTUAL;		// the JVM makes virtual threads for us
+
+	static {
+		Method o = null;
+		Method n = null;
+		Method u = null;
+		boolean v = false;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			o = Thread.class.getMethod("ofVirtual");
+			n = builder.getMethod("name", String.class);
+			u = builder.getMethod("unstarted", Runnable.class);
+			o.invoke(null);			// throws if preview features are off on Java 19 and 20
+			v = true;
+		} catch (ReflectiveOperationException e) {
+			// older JVM, we use platform threads
+		}
+		OF_VIRTUAL = v ? o : null;
+		NAME = n;
+		UNSTARTED = u;
+		VIRTUAL = v;
+	}
+
+	private Socket socket;
+	private SpscRingBuffer<Message> s2m;		// filled by our thread only
+	private MessagePool pool;		// for the frames we decode
+	private MpscRingBuffer<Message> m2s;		// filled by the middleware and the workers
+	private EventSignal events;		// wakes up the middleware when we received something
+	private BatchPolicy batchPolicy;
+	private InputStream in;
+	private OutputStream out;
+	private Thread reader;
+	private Thread writer;
+	private volatile boolean exitFlag = false;
+
+
+
+	DuplexPeer (Socket s, EventSignal events, BatchPolicy p) throws IOException {
+		socket = s;
+		s2m = new SpscRingBuffer<Message>(SocketThread.QUEUE_CAPACITY);
+		pool = new MessagePool(SocketThread.POOL_CAPACITY);
+		m2s = new MpscRingBuffer<Message>(SocketThread.QUEUE_CAPACITY);
+		this.events = events;
+		batchPolicy = p;
+		in = socket.getInputStream();
+		out = socket.getOutputStream();
+		socket.setTcpNoDelay(true);		// the writer batches, Nagle's algorithm would only add delay
+	}
+
+
+
+
+
+	private String getTimestamp() {
+		Date date = new Date();
+		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy h:mm:ss a : ");
+		String formattedDate = sdf.format(date);
+		return formattedDate; // 09/01/2014 4:48:16 PM
+	}
+
+
+
+
+
+	/* The queue methods used by the middleware. The writer is blocked on m2s, so putting a
+	 * message is all it takes to get it sent.
+	 */
+
+	public void putMessage (Message m) {
+		if (exitFlag) {
+			return;			// the writer is gone or going, nobody would take it out of the ring
+		}
+		m2s.put(m);
+	}
+
+	public Message getMessage () {
+		return s2m.poll();
+	}
+
+	public int getInboundDepth () {
+		return s2m.size();
+	}
+
+	public int getOutboundDepth () {
+		return m2s.size();
+	}
+
+
+
+
+
+	/* start: Starts the reader and the writer. name tells whose threads they are. */
+	void start (String name) {
+		reader = newThread(new Reader(), name + "-reader");
+		writer = newThread(new Writer(), name + "-writer");
+		reader.start();
+		writer.start();
+	}
+
+	/* usesVirtualThreads: True if the threads of the peers are virtual threads */
+	static boolean usesVirtualThreads () {
+		return VIRTUAL;
+	}
+
+
+
+
+
+	/* close: The writer sends everything queued before this call and stops. Then we shut down the
+	 * input side, which ends the blocked read of the reader, and close the socket. The middleware
+	 * pulls what is left in the inbound queue after this.
+	 */
+	void close () {
+		m2s.put(CLOSE);
+		exitFlag = true;
+		join(writer);
+		try {
+			socket.shutdownInput();
+		} catch (IOException e) {
+			// already closed by the other side, the read ends anyway
+		}
+		join(reader);
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.err.println(getTimestamp() + "[ERROR] Error closing the socket");
+		}
+	}
+
+	private void join (Thread t) {
+		try {
+			t.join();
+		} catch (InterruptedException e) {
+			System.err.println(getTimestamp() + "[ERROR] Interrupted while waiting for " + t.getName() + " to exit");
+		}
+	}
+
+
+
+
+
+	/* Reader: Blocks on the socket and decodes every complete frame into the inbound queue. A read
+	 * may return only a part of a frame, the bytes received so far are kept till the rest arrives.
+	 */
+	private class Reader implements Runnable {
+
+		public void run () {
+			ByteBuffer inBuf = ByteBuffer.allocate(BUFFER_SIZE);
+			try {
+				while (true) {
+					int n = in.read(inBuf.array(), inBuf.position(), inBuf.remaining());
+					if (n < 0) {
+						//System.err.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Received EOF on the socket");
+						exitFlag = true;
+						return;
+					}
+					inBuf.position(inBuf.position() + n);
+					inBuf.flip();
+					Message mi;
+					boolean received = false;
+					while ((mi = MessageCodec.decode(inBuf, pool)) != null) {
+						s2m.put(mi);
+						received = true;
+					}
+					inBuf.compact();
+					if (received && events != null) {
+						events.signal();
+					}
+				}
+			} catch (IOException e) {
+				if (! exitFlag) {
+					System.err.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Error while reading Message from socket");
+					e.printStackTrace();
+					exitFlag = true;
+				}
+			}
+		}
+	}
+
+
+
+
+
+	/* Writer: Blocks on the outbound queue. When a message comes in, it is written right away
+	 * together with whatever else is queued by then, at most maxBatch of the BatchPolicy per
+	 * write. The writer never lingers, its own wakeup gives the batch time enough to fill.
+	 */
+	private class Writer implements Runnable {
+
+		public void run () {
+			ByteBuffer outBuf = ByteBuffer.allocate(BUFFER_SIZE);
+			boolean closing = false;
+			boolean broken = false;		// a write failed, nothing goes out any more
+			while (! closing) {
+				Message mo;
+				try {
+					mo = m2s.take();
+				} catch (InterruptedException e) {
+					continue;		// only close() stops us
+				}
+				outBuf.clear();
+				int count = 0;
+				try {
+					while (mo != null) {
+						if (mo == CLOSE) {
+							closing = true;
+							break;
+						}
+						if (broken) {
+							mo = m2s.poll();
+							continue;
+						}
+						if (outBuf.remaining() < MessageCodec.frameSize(mo)) {
+							out.write(outBuf.array(), 0, outBuf.position());
+							outBuf.clear();
+						}
+						MessageCodec.encode(mo, outBuf);
+						if (++count >= batchPolicy.getMaxBatch()) {
+							break;
+						}
+						mo = m2s.poll();
+					}
+					if (! broken) {
+						out.write(outBuf.array(), 0, outBuf.position());
+						out.flush();
+					}
+				} catch (IOException e) {
+					System.err.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Error sending message");
+					e.printStackTrace();
+					broken = true;
+					exitFlag = true;
+				}
+			}
+		}
+	}
+
+
+
+
+
+	/* newThread: A virtual thread if the JVM has them, a platform thread otherwise */
+	private static Thread newThread (Runnable r, String name) {
+		if (OF_VIRTUAL != null) {
+			try {
+				Object b = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) UNSTARTED.invoke(b, r);
+			} catch (ReflectiveOperationException e) {
+				// should not happen, we checked it works. Take a platform thread
+			}
+		}
+		Thread t = new Thread(r, name);
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,39 @@
+/* This class is the single wakeup source of the middleware thread. The application and every
+ * transport thread call signal() after they put something in a queue for the middleware. The
+ * middleware blocks in await() while there is nothing to do, instead of polling all the queues
+ * in a tight loop. Signals are not counted: any number of them before the next await() make it
+ * return once, after which the middleware drains all its queues anyway.
+ */
+
+package middleware;
+
+public class EventSignal {
+
+	private volatile boolean pending = false;
+
+
+
+	public void signal () {
+		if (pending) {
+			return;			// middleware has not woken up for the previous one yet, no need to notify again
+		}
+		synchronized (this) {
+			pending = true;
+			notifyAll();
+		}
+	}
+
+
+
+
+
+	/* await: Waits till someone signals us, or at most timeout milliseconds. Returns right away
+	 * if there was a signal since the last call.
+	 */
+	public synchronized void await (long timeout) throws InterruptedException {
+		if (!pending) {
+			wait(timeout);
+		}
+		pending = false;
+	}
+}
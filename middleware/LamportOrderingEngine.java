@@ -0,0 +1,426 @@
+/* This class is the original ordering of the middleware: Lamport's totally ordered multicast.
+ * Every update is stamped with our logical clock and multicast to every node. Every node keeps
+ * the updates in a priority queue ordered by (timestamp, sender), an UpdateHeap, and delivers the
+ * head once all the other nodes have acknowledged it.
+ * Acknowledgments are cumulative: every message carries an ack vector telling, for each sender,
+ * the latest of its updates the node has received. They ride on our outgoing updates, and a
+ * separate 'a' message is sent only when there is no update going out.
+ * Message types: 'u' (update, with acks) and 'a' (acks only).
+ * A node which rejoins gets the received vector, the watermarks and the queue of a live node ('y',
+ * 'w' and 'u'). The other nodes drop the updates of its old incarnation which the live node did
+ * not receive ('r'): nobody can have delivered them without its acknowledgment. They get copies
+ * of those the live node still holds ('c') and keep the ones they missed, because the new
+ * incarnation acknowledges past all of them.
+ */
+
+package middleware;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+public class LamportOrderingEngine implements OrderingEngine {
+
+	private int pid;
+	private ClusterConfig config;
+	private LogicalClock clock;
+	private OrderingEngine.Context ctx;
+	private UpdateHeap queue;
+	private int myIndex;
+	private int numNodes;
+	private long[] received;		// received[s]: latest update of node s we have got (for us: we have sent)
+	private long[][] acked;			// acked[j][s]: latest update of node s which node j has acknowledged
+	private boolean ackPending;		// we got updates which we have not acknowledged yet
+	private long[] imported;		// received[] of the state we rejoined with, null if we did not
+
+	// for the ack round trip times: our updates which not every node has acknowledged yet
+	private LongQueue sentStamps;		// their timestamps
+	private LongQueue sentTimes;		// System.nanoTime() when they went out
+	private long sentBase;			// number of our updates before the first one in the queues
+	private long[] ackedCount;		// ackedCount[j]: number of our updates node j has acknowledged
+
+
+
+	public LamportOrderingEngine (int pid, ClusterConfig conf, LogicalClock clock, OrderingEngine.Context ctx) {
+		this.pid = pid;
+		config = conf;
+		this.clock = clock;
+		this.ctx = ctx;
+		myIndex = config.indexOf(pid);
+		numNodes = config.size();
+		queue = new UpdateHeap(64);
+		received = new long[numNodes];
+		acked = new long[numNodes][numNodes];
+		for (int j = 0; j < numNodes; j++) {
+			received[j] = -1;
+			for (int s = 0; s < numNodes; s++) {
+				acked[j][s] = -1;
+			}
+		}
+		ackPending = false;
+		imported = null;
+		sentStamps = new LongQueue();
+		sentTimes = new LongQueue();
+		sentBase = 0;
+		ackedCount = new long[numNodes];
+	}
+
+
+
+
+
+	private String getTimestamp() {
+		Date date = new Date();
+		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy h:mm:ss a : ");
+		String formattedDate = sdf.format(date);
+		return formattedDate; // 09/01/2014 4:48:16 PM
+	}
+
+
+
+
+
+	/* submit: Stamps our update, multicasts it with our current ack vector and puts it in the
+	 * priority queue.
+	 */
+	public void submit (Message m) {
+		clock.increment();
+		m.setTime(clock.getTime());
+		received[myIndex] = m.getTimestamp();
+
+		/* The update itself goes out, with our acks riding on it. It is shared by all the
+		 * transports and later handed to the application; nobody changes it after this.
+		 */
+		m.setAcks(ackVector());
+		ctx.multicast(m);
+		if (numNodes > 1) {
+			sentStamps.add(m.getTimestamp());
+			sentTimes.add(System.nanoTime());
+		}
+
+		queue.add(m);
+	}
+
+
+
+
+
+	/* receive: Any message may carry acknowledgments, take them into account first. Then an
+	 * update goes to the queue. Either may complete the head of the queue. An acknowledgment is
+	 * not needed after this, it goes back to the pool of its connection.
+	 */
+	public boolean receive (Message mi) {
+		if (mi.getType() == 'r') {
+			forget(mi);
+			mi.recycle();
+			return true;
+		}
+		if (mi.getType() == 'c') {
+			copied(mi);
+			mi.recycle();
+			return true;
+		}
+		if (mi.getAcks() != null) {
+			processAckMessage(mi);
+		}
+
+		if (mi.getType() == 'u') {
+			processUpdateMessage(mi);
+		} else if (mi.getType() == 'a') {
+			mi.recycle();
+		} else {
+			return false;
+		}
+		deliverMessages();
+		return true;
+	}
+
+
+
+
+
+	/* flush: If we owe acknowledgments which did not ride on an update, this method
+	 * multicasts one cumulative acknowledgment for all of them.
+	 */
+	public void flush () {
+		if (! ackPending) {
+			return;
+		}
+		clock.increment();
+		Message a = new Message('a', clock.getTime(), pid);
+		a.setAcks(ackVector());
+		ctx.multicast(a);
+	}
+
+
+
+
+
+	public boolean isIdle () {
+		return queue.isEmpty();
+	}
+
+	public int getPendingCount () {
+		return queue.size();
+	}
+
+	public long getLatest (int index) {
+		return received[index];
+	}
+
+
+
+
+
+	/* writeState: Our clock and received vector ('y'), the watermarks of every other node ('w',
+	 * stamped with its position) and a copy of every update in the queue. The others drop the
+	 * updates of the rejoining node after what we received, up to the latest any node received
+	 * ('r'); the updates it sends from now on are stamped past that. They also get a copy of its
+	 * updates in our queue ('c'): we can not have delivered them without their acknowledgment,
+	 * so whatever they miss of it is there.
+	 */
+	public void writeState (int index, long latest, List<Message> toNode, List<Message> toOthers) {
+		Message y = new Message('y', clock.getTime(), pid);
+		y.setAcks(received.clone());
+		toNode.add(y);
+		for (int j = 0; j < numNodes; j++) {
+			if (j != myIndex && j != index) {
+				Message w = new Message('w', j, pid);
+				w.setAcks(acked[j].clone());
+				toNode.add(w);
+			}
+		}
+		for (int i = 0; i < queue.size(); i++) {
+			Message m = queue.get(i);
+			Message c = new Message('u', m.getTimestamp(), m.getSender());
+			c.setUpdate(m.getUpdate());
+			c.setParts(m.getParts());
+			toNode.add(c);
+		}
+		Message r = new Message('r', received[index], pid);
+		r.setAcks(new long[] {index, latest});
+		toOthers.add(r);
+		int x = config.getId(index);
+		UpdateHeap copies = new UpdateHeap(16);		// they have to go in the order x sent them
+		for (int i = 0; i < queue.size(); i++) {
+			Message m = queue.get(i);
+			if (m.getSender() == x) {
+				Message c = new Message('c', m.getTimestamp(), x);
+				c.setUpdate(m.getUpdate());
+				c.setParts(m.getParts());
+				copies.add(c);
+			}
+		}
+		while (! copies.isEmpty()) {
+			toOthers.add(copies.poll());
+		}
+	}
+
+	/* readState: What the live node received is what we have now. Its own watermarks are what it
+	 * received, and we owe everybody an acknowledgment of all of it.
+	 */
+	public void readState (Message m) {
+		if (m.getType() == 'y') {
+			if (clock.getTime() <= m.getTimestamp()) {
+				clock.setTime(m.getTimestamp() + 1);
+			}
+			long[] acks = m.getAcks();
+			int d = config.indexOf(m.getSender());
+			for (int s = 0; s < numNodes; s++) {
+				received[s] = acks[s];
+				acked[d][s] = Math.max(acked[d][s], acks[s]);
+			}
+			imported = acks.clone();
+			ackPending = true;
+		} else if (m.getType() == 'w') {
+			long[] acks = m.getAcks();
+			long[] watermarks = acked[(int) m.getTimestamp()];
+			for (int s = 0; s < numNodes; s++) {
+				watermarks[s] = Math.max(watermarks[s], acks[s]);
+			}
+		} else if (m.getType() == 'u') {
+			queue.add(m);
+		}
+	}
+
+
+
+
+
+	/* deliverMessages: This method is to deliver the messages to the application layer.
+	 * It basically takes a peek at the head of the priority queue. If we have received
+	 * enough acknowledgments for that message, then we can deliver that message. If not,
+	 * we have to wait. If the head is delivered, then check for the next head too.
+	 */
+	private void deliverMessages () {
+		while (! queue.isEmpty()) {
+			if (readyToPop()) {
+				ctx.deliver(queue.poll());
+			} else {
+				return;
+			}
+		}
+	}
+
+
+
+
+
+	/* readyToPop: This method tells us whether the head of the priority queue is ready to be
+	 * delivered to the application layer. That is the case when every other node has acknowledged
+	 * it, i.e. the ack watermark of each node for the sender of the head has reached its timestamp.
+	 * The sender does not acknowledge its own update and our own acknowledgment is implied.
+	 */
+	private boolean readyToPop () {
+		long t = queue.peekTime();
+
+		int s = config.indexOf(queue.peekSender());
+		for (int j = 0; j < numNodes; j++) {
+			if (j == myIndex || j == s) {
+				continue;
+			}
+			if (acked[j][s] < t) {
+				// this means the head is not ready to be popped yet.
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+
+
+
+	/* processAckMessage: This method takes the ack vector of a message from Pj and raises the
+	 * watermarks of Pj: acks[s] means Pj has received every update of the node at position s of
+	 * the config up to that timestamp.
+	 * As the channels are FIFO and Pj's clock is past all of those updates, nothing older than
+	 * the watermark can come from Pj any more. The work does not depend on how many messages
+	 * are waiting in the priority queue.
+	 */
+	private void processAckMessage (Message m) {
+		long[] acks = m.getAcks();
+		int j = config.indexOf(m.getSender());
+		long[] watermarks = acked[j];
+		int n = Math.min(acks.length, numNodes);
+		for (int s = 0; s < n; s++) {
+			if (acks[s] > watermarks[s]) {
+				watermarks[s] = acks[s];
+			}
+		}
+		measureAcks(j);
+	}
+
+
+
+
+
+	/* measureAcks: Our updates which Pj acknowledged for the first time have made their round
+	 * trip to Pj. Those which every node has acknowledged are not needed any more.
+	 */
+	private void measureAcks (int j) {
+		long now = 0;
+		long w = acked[j][myIndex];
+		while (ackedCount[j] - sentBase < sentStamps.size() && sentStamps.get((int) (ackedCount[j] - sentBase)) <= w) {
+			if (now == 0) {
+				now = System.nanoTime();
+			}
+			ctx.ackRtt(j, now - sentTimes.get((int) (ackedCount[j] - sentBase)));
+			ackedCount[j]++;
+		}
+
+		long all = Long.MAX_VALUE;
+		for (int k = 0; k < numNodes; k++) {
+			if (k != myIndex) {
+				all = Math.min(all, ackedCount[k]);
+			}
+		}
+		while (sentBase < all && sentStamps.size() > 0) {
+			sentStamps.poll(0);
+			sentTimes.poll(0);
+			sentBase++;
+		}
+	}
+
+
+
+
+
+	/* processUpdateMessage: This method takes an update message and does following:
+	 * 		1. adjust the logical clock if necessary
+	 * 		2. Note that we owe an acknowledgment (sent with our next update or by flush())
+	 * 		3. Add the message to the ordered queue
+	 */
+	private void processUpdateMessage (Message mi) {
+
+		/* Check if we need to adjust our clock. If so, do it */
+		if (clock.getTime() <= mi.getTimestamp()) {
+			clock.setTime(mi.getTimestamp() + 1);
+		}
+		clock.increment();
+
+		/* Updates of a sender come in timestamp order over its channel */
+		int s = config.indexOf(mi.getSender());
+		if (mi.getTimestamp() <= received[s]) {
+			if (imported != null && mi.getTimestamp() <= imported[s]) {
+				mi.recycle();		// came with the state we rejoined with
+				return;
+			}
+			System.err.println(getTimestamp() + "[WARNING] Duplicate update from P" + mi.getSender() + " stamped " + LogicalClock.format(mi.getTimestamp(), mi.getSender()));
+			mi.recycle();
+			return;
+		}
+		received[s] = mi.getTimestamp();
+		ackPending = true;
+		queue.add(mi);
+	}
+
+
+
+
+
+	/* forget: A node rejoined. The updates of its old incarnation stamped after what the donor of
+	 * the state received never reach the new one, so they can not be delivered anywhere.
+	 */
+	private void forget (Message r) {
+		long[] a = r.getAcks();
+		int sender = config.getId((int) a[0]);
+		int n = queue.remove(sender, r.getTimestamp(), a[1]);
+		if (n > 0) {
+			System.err.println(getTimestamp() + "[WARNING] Dropped " + n + " updates P" + sender + " sent before it restarted");
+		}
+		deliverMessages();
+	}
+
+
+
+
+
+	/* copied: A copy of an update of a node which rejoined, from its donor. We keep it if we did not
+	 * get it from the old incarnation. The copies come before anything of the new one.
+	 */
+	private void copied (Message c) {
+		int s = config.indexOf(c.getSender());
+		if (c.getTimestamp() <= received[s]) {
+			return;
+		}
+		Message u = new Message('u', c.getTimestamp(), c.getSender());
+		u.setInstrument(c.getInstrument());
+		u.setUpdate(c.getUpdate());
+		u.setParts(c.getParts());
+		processUpdateMessage(u);
+		deliverMessages();
+	}
+
+
+
+
+
+	/* ackVector: Returns a copy of what we have received so far from every sender. Sending
+	 * it acknowledges all of those updates, so nothing is pending after this.
+	 */
+	private long[] ackVector () {
+		ackPending = false;
+		return received.clone();
+	}
+}
@@ -0,0 +1,128 @@
+/* This class is a histogram of latencies in nanoseconds which can be recorded from any thread
+ * without locking. Buckets are log-linear: every power of two is split into 16 buckets, so a
+ * value is known within 1/16 of itself (values below 16ns exactly) from 1ns up to hundreds of
+ * years, in 960 counters. Recording is two increments and, now and then, a new maximum.
+ * Percentiles are read from the counters while recording goes on, so a reading may miss the
+ * values recorded during it.
+ */
+
+package middleware;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;		// buckets per power of two
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+	private AtomicLongArray counts;
+	private LongAdder total;
+	private AtomicLong max;
+
+
+
+	public LatencyHistogram () {
+		counts = new AtomicLongArray(BUCKETS);
+		total = new LongAdder();
+		max = new AtomicLong(0);
+	}
+
+
+
+
+
+	/* record: Adds one value. Negative values (a clock going backwards) count as 0. */
+	public void record (long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		total.add(nanos);
+		long m = max.get();
+		while (nanos > m && ! max.compareAndSet(m, nanos)) {
+			m = max.get();
+		}
+	}
+
+	public void reset () {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		total.reset();
+		max.set(0);
+	}
+
+
+
+
+
+	/* Pretty much self-explanatory methods. All values are in nanoseconds. */
+
+	public long getCount () {
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			n += counts.get(i);
+		}
+		return n;
+	}
+
+	public long getMax () {
+		return max.get();
+	}
+
+	public double getMean () {
+		long n = getCount();
+		return n == 0 ? 0 : (double) total.sum() / n;
+	}
+
+	/* getPercentile: The value which p percent of the recorded values do not exceed (the upper
+	 * end of its bucket, at most the maximum). 0 if nothing was recorded.
+	 */
+	public long getPercentile (double p) {
+		long n = getCount();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(n * p / 100.0);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+
+
+
+
+	/* bucket: Below SUB the value itself. Above, the position of the highest bit picks the power
+	 * of two and the SUB_BITS bits below it the bucket within.
+	 */
+	private static int bucket (long v) {
+		if (v < SUB) {
+			return (int) v;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(v);
+		int sub = (int) (v >>> (msb - SUB_BITS)) & (SUB - 1);
+		return (msb - SUB_BITS + 1) * SUB + sub;
+	}
+
+	private static long upperBound (int bucket) {
+		if (bucket < SUB) {
+			return bucket;
+		}
+		int msb = bucket / SUB + SUB_BITS - 1;
+		int sub = bucket % SUB;
+		long lower = (long) (SUB + sub) << (msb - SUB_BITS);
+		return lower + (1L << (msb - SUB_BITS)) - 1;
+	}
+}
@@ -1,4 +1,15 @@
-/* This class is used for writing all the logs in a particular format. 
+/* This class is used for writing all the logs in a particular format.
+ * Logging is asynchronous so that the disk is not on the path of the callers (the middleware logs
+ * every delivered update). log() only puts the line with the time of the call in a preallocated
+ * ring buffer; a single writer thread takes the lines in the order they were logged and writes
+ * them to the file in batches. Callers wait only if the ring is full.
+ * The timestamp has a resolution of one second, so the writer formats it once per second.
+ * The flush policy is set with setFlushInterval(): by default the file is flushed after every
+ * batch the writer takes from the ring, otherwise at most once per interval.
+ * closeLog() writes out everything logged before it and closes the file. It is also done when the
+ * JVM shuts down, so lines are not lost if the application exits without closing the log. Closing
+ * sets the CLOSED bit of the claim counter, so a line is either claimed before it (and written)
+ * or refused, never claimed after the writer has finished.
  */
 
 package middleware;
@@ -6,33 +17,229 @@ package middleware;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 public class LogWriter {
+
+	public static final int DEFAULT_CAPACITY = 8192;		// lines, has to be a power of 2
+
+	private static final long CLOSED = Long.MIN_VALUE;	// bit of claimed, set by closeLog()
+	private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(100);	// writer sleeps at most this long
+
 	private BufferedWriter out;
+	private String[] messages;		// the ring: slot i holds the line with sequence number published[i]
+	private long[] times;
+	private AtomicLongArray published;
+	private int mask;
+	private AtomicLong claimed;		// next sequence number for log(), and the CLOSED bit
+	private volatile long consumed;		// every line before this is written, its slot is free
+	private volatile boolean sleeping;	// writer is parked, log() has to wake it up
+	private volatile long flushInterval;	// ms, 0: flush after every batch
+	private Thread writer;
+	private Thread hook;			// closes the log at shutdown, removed by closeLog()
+
+	// used by the writer thread only
+	private SimpleDateFormat sdf;
+	private long cachedSecond;
+	private String cachedPrefix;
+
+
 
 	public LogWriter (BufferedWriter o) {
+		this(o, DEFAULT_CAPACITY);
+	}
+
+	public LogWriter (BufferedWriter o, int capacity) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("Capacity of the log has to be a power of 2");
+		}
 		out = o;
+		messages = new String[capacity];
+		times = new long[capacity];
+		published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			published.set(i, -1);
+		}
+		mask = capacity - 1;
+		claimed = new AtomicLong(0);
+		consumed = 0;
+		sleeping = false;
+		flushInterval = 0;
+		sdf = new SimpleDateFormat("[ MM/dd H:mm:ss ] : ");
+		cachedSecond = -1;
+
+		writer = new Thread(new Runnable() {
+			public void run () {
+				writeLoop();
+			}
+		}, "LogWriter");
+		writer.setDaemon(true);
+		writer.start();
+		hook = new Thread() {
+			public void run () {
+				try {
+					closeLog();
+				} catch (IOException e) {
+					// nothing we can do this late
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(hook);
+	}
+
+
+
+
+
+	/* log: Queues the line. It is written to the file by the writer thread. */
+	public void log (String message) {
+		long seq;
+		do {
+			seq = claimed.get();
+			if ((seq & CLOSED) != 0) {
+				System.err.println("[ERROR] Log is closed, dropping: " + message);
+				return;
+			}
+		} while (! claimed.compareAndSet(seq, seq + 1));
+		while (seq - consumed >= messages.length) {
+			// the ring is full, let the writer catch up
+			LockSupport.unpark(writer);
+			Thread.yield();
+		}
+		int i = (int) seq & mask;
+		messages[i] = message;
+		times[i] = System.currentTimeMillis();
+		published.set(i, seq);
+		if (sleeping) {
+			LockSupport.unpark(writer);
+		}
 	}
 
-	public synchronized void log  (String message) {
+
+
+
+
+	/* setFlushInterval: 0 flushes the file after every batch the writer takes (default). Otherwise
+	 * the file is flushed at most once in this many milliseconds, so a crash can lose the lines
+	 * of the last interval.
+	 */
+	public void setFlushInterval (long millis) {
+		flushInterval = millis;
+		LockSupport.unpark(writer);
+	}
+
+
+
+
+
+	/* closeLog: Waits till every line logged so far is written, then closes the file */
+	public void closeLog() throws IOException {
+		long c;
+		do {
+			c = claimed.get();
+		} while (! claimed.compareAndSet(c, c | CLOSED));
 		try {
-			out.write(getTimestamp() + message);
+			Runtime.getRuntime().removeShutdownHook(hook);
+		} catch (IllegalStateException e) {
+			// we are shutting down, maybe in the hook itself
+		}
+		LockSupport.unpark(writer);
+		boolean interrupted = false;
+		while (writer.isAlive()) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		out.close();
+	}
+
+
+
+
+
+	/* writeLoop: The writer thread. Takes all the lines published in order, writes them, then
+	 * flushes according to the policy. Parks when there is nothing to write.
+	 */
+	private void writeLoop () {
+		long next = 0;
+		long lastFlush = System.currentTimeMillis();
+		boolean dirty = false;
+
+		while (true) {
+			int n = 0;
+			int i;
+			while (published.get(i = (int) next & mask) == next) {
+				write(times[i], messages[i]);
+				messages[i] = null;
+				next++;
+				n++;
+				if ((n & 63) == 0) {
+					consumed = next;	// free the slots now and then during a long batch
+				}
+			}
+			consumed = next;
+			dirty |= n > 0;
+
+			long now = System.currentTimeMillis();
+			long interval = flushInterval;
+			if (dirty && (interval == 0 || now - lastFlush >= interval)) {
+				flush();
+				dirty = false;
+				lastFlush = now;
+			}
+
+			if (n == 0) {
+				long c = claimed.get();
+				boolean closed = (c & CLOSED) != 0;
+				if (closed && next == (c & ~CLOSED)) {
+					break;		// no line can be claimed any more, and all of them are written
+				}
+				sleeping = true;
+				if (published.get((int) next & mask) != next) {
+					long park = IDLE_PARK;
+					if (closed) {
+						park = TimeUnit.MILLISECONDS.toNanos(1);	// someone is still publishing its line
+					} else if (dirty) {
+						park = TimeUnit.MILLISECONDS.toNanos(Math.max(1, lastFlush + interval - now));
+					}
+					LockSupport.parkNanos(park);
+				}
+				sleeping = false;
+			}
+		}
+		flush();
+	}
+
+	private void write (long time, String message) {
+		long second = time / 1000;
+		if (second != cachedSecond) {
+			cachedPrefix = sdf.format(new Date(time));
+			cachedSecond = second;
+		}
+		try {
+			out.write(cachedPrefix);
+			out.write(message);
 			out.newLine();
-			out.flush();
 		} catch (IOException e) {
 			System.err.println("[ERROR] Error writing the log file");
 			e.printStackTrace();
 		}
 	}
 
-	private String getTimestamp() {
-		Date date = new Date();
-		SimpleDateFormat sdf = new SimpleDateFormat("[ MM/dd H:mm:ss ] : ");
-		String formattedDate = sdf.format(date);
-		return formattedDate; // 09/01/2014 4:48:16 PM
-	}
-
-	public void closeLog() throws IOException {
-		out.close();
+	private void flush () {
+		try {
+			out.flush();
+		} catch (IOException e) {
+			System.err.println("[ERROR] Error writing the log file");
+			e.printStackTrace();
+		}
 	}
 }
@@ -1,6 +1,9 @@
 /* This class is Lamport's logical clock. It provides methods like increment(), getTime(), 
  * setTime() which are used by middleware to increment the clock after event, get current 
  * time and adjust the clock if necessary.
+ * A timestamp is the pair (time, pid). The time is a plain counter and ties between equal
+ * counters are broken by the pid, so two events of different processes never compare equal.
+ * Both parts are primitives and compare exactly, nothing is encoded into a floating point number.
  */
 
 package middleware;
@@ -12,37 +15,56 @@ public class LogicalClock {
 
 	private int pid;
 	private int step;
-	private double currentTime;
+	private long currentTime;
 
 	public LogicalClock (int pid, int step) {
 		this.pid = pid;
 		this.step = step;
-		this.currentTime = this.pid * Math.pow(10, -(String.valueOf(this.pid).length()) );	// this is complicated but general
+		this.currentTime = 0;
 	}
 
-	public double increment () {
+	public long increment () {
 		currentTime += step;
 		return currentTime;
 	}
 
 	public void reset () {
 		System.out.println(getTimestamp() + "[Middleware-clock] Resetting logical clock");
-		currentTime = Math.pow(10, -(String.valueOf(this.pid).length()) );
+		currentTime = 0;
 	}
 
-	public double getTime () {
+	public long getTime () {
 		return currentTime;
 	}
 
-	public void setTime (double newTime) {
-		double appendTime = this.pid * Math.pow(10, -(String.valueOf(this.pid).length()) );	
-		if ( (newTime - Math.floor(newTime)) != appendTime ) {
-			newTime = Math.floor(newTime) + appendTime;
-		}
+	public int getPid () {
+		return pid;
+	}
+
+	public void setTime (long newTime) {
 		//System.out.println(getTimestamp() + "[Middleware-clock] Adjusting clock to " + newTime);
 		currentTime = newTime;
 	}
 
+
+
+
+
+	/* compare: Total order of timestamps. Compares the counters first and the pids if the
+	 * counters are equal.
+	 */
+	public static int compare (long t1, int pid1, long t2, int pid2) {
+		if (t1 != t2) {
+			return t1 < t2 ? -1 : 1;
+		}
+		return pid1 < pid2 ? -1 : (pid1 == pid2 ? 0 : 1);
+	}
+
+	/* format: The timestamp as it is printed in the logs, e.g. 12.1 for time 12 of P1 */
+	public static String format (long t, int pid) {
+		return t + "." + pid;
+	}
+
 	private String getTimestamp() {
 		Date date = new Date();
 		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy h:mm:ss a : ");
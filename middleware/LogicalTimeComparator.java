@@ -1,6 +1,8 @@
 /* This class implements Comparator interface to provide a comparator for Message objects. 
  * The comparison is done based on the timestamp of the Message object. This is used as the 
  * comparator of PriorityQueue used by the middleware.
+ * The timestamp is the pair (time, sender) and is compared on the primitive fields directly,
+ * time first and the sender's pid to break ties.
  */
 
 package middleware;
@@ -10,12 +12,7 @@ import java.util.Comparator;
 public class LogicalTimeComparator implements Comparator<Message> {
 
 	public int compare (Message a, Message b) {
-		if (a.getTimestamp() < b.getTimestamp() ) {
-			return -1;
-		} else if (a.getTimestamp() > b.getTimestamp() ) {
-			return 1;
-		}
-		return 0;
+		return LogicalClock.compare(a.getTimestamp(), a.getSender(), b.getTimestamp(), b.getSender());
 	}
 
 }
@@ -0,0 +1,58 @@
+/* This class is a first-in first-out queue of longs which grows as needed. It keeps the times at
+ * which our own updates went out till they come back, without boxing a Long for each of them.
+ * It is not thread-safe; every user has its own.
+ */
+
+package middleware;
+
+class LongQueue {
+
+	private long[] values;
+	private int head;			// position of the oldest value
+	private int size;
+
+
+
+	LongQueue () {
+		values = new long[64];
+		head = 0;
+		size = 0;
+	}
+
+
+
+
+
+	void add (long v) {
+		if (size == values.length) {
+			long[] bigger = new long[2 * values.length];
+			for (int i = 0; i < size; i++) {
+				bigger[i] = values[(head + i) & (values.length - 1)];
+			}
+			values = bigger;
+			head = 0;
+		}
+		values[(head + size) & (values.length - 1)] = v;
+		size++;
+	}
+
+	/* poll: Removes and returns the oldest value, def if there is none */
+	long poll (long def) {
+		if (size == 0) {
+			return def;
+		}
+		long v = values[head];
+		head = (head + 1) & (values.length - 1);
+		size--;
+		return v;
+	}
+
+	/* get: The i-th oldest value, 0 is the oldest */
+	long get (int i) {
+		return values[(head + i) & (values.length - 1)];
+	}
+
+	int size () {
+		return size;
+	}
+}
@@ -0,0 +1,174 @@
+/* This class is the in-memory transport, for clusters whose nodes all run in the same JVM. There
+ * are no sockets and no threads: every ordered pair of nodes has a queue, putMessage() adds to the
+ * queue towards the other node and wakes up its middleware, getMessage() polls the queue from it.
+ * Messages are handed over by reference and never serialized, which is fine as nobody changes a
+ * message once it is sent. That takes TCP and the number of machines out of a measurement.
+ * The transports of one cluster meet in a Network:
+ * 		LoopbackTransport.Network net = new LoopbackTransport.Network();
+ * 		layer[i].setTransport(new LoopbackTransport(net));		// for every node
+ * connect() waits till every node of the config has joined the network.
+ */
+
+package middleware;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class LoopbackTransport implements Transport {
+
+	private static final long CONNECT_TIMEOUT = 60000;	// ms to wait for the other nodes to join
+
+	private Network network;
+	private int pid;
+
+
+
+	/* The nodes of one in-process cluster. Each node which joined has its EventSignal here, and
+	 * each pair of them the queue between them.
+	 */
+	public static class Network {
+
+		private HashMap<Integer, EventSignal> nodes = new HashMap<Integer, EventSignal>();
+		private HashMap<Long, ConcurrentLinkedQueue<Message>> channels = new HashMap<Long, ConcurrentLinkedQueue<Message>>();
+
+		private synchronized void join (int pid, EventSignal events) throws IOException {
+			if (nodes.containsKey(pid)) {
+				throw new IOException("P" + pid + " has already joined the loopback network");
+			}
+			/* a node which joins again starts afresh, without what was queued for its last run */
+			Iterator<Long> it = channels.keySet().iterator();
+			while (it.hasNext()) {
+				long k = it.next();
+				if ((int) (k >> 32) == pid || (int) k == pid) {
+					it.remove();
+				}
+			}
+			nodes.put(pid, events);
+			notifyAll();
+		}
+
+		private synchronized void leave (int pid) {
+			nodes.remove(pid);
+		}
+
+		private synchronized void awaitAll (ClusterConfig config) throws IOException {
+			long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+			for (int i = 0; i < config.size(); i++) {
+				while (! nodes.containsKey(config.getId(i))) {
+					long left = deadline - System.currentTimeMillis();
+					if (left <= 0) {
+						throw new IOException("P" + config.getId(i) + " did not join the loopback network");
+					}
+					try {
+						wait(left);
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while waiting for P" + config.getId(i) + " to join");
+					}
+				}
+			}
+		}
+
+		private synchronized ConcurrentLinkedQueue<Message> channel (int from, int to) {
+			ConcurrentLinkedQueue<Message> q = channels.get(key(from, to));
+			if (q == null) {
+				q = new ConcurrentLinkedQueue<Message>();
+				channels.put(key(from, to), q);
+			}
+			return q;
+		}
+
+		private synchronized EventSignal events (int pid) {
+			return nodes.get(pid);
+		}
+
+		private static long key (int from, int to) {
+			return ((long) from << 32) | (to & 0xffffffffL);
+		}
+	}
+
+
+
+	/* The connection to one other node: two queues and the other node's wakeup */
+	private static class LoopbackPeer implements Peer {
+
+		private ConcurrentLinkedQueue<Message> out;
+		private ConcurrentLinkedQueue<Message> in;
+		private EventSignal remote;
+
+		LoopbackPeer (ConcurrentLinkedQueue<Message> out, ConcurrentLinkedQueue<Message> in, EventSignal remote) {
+			this.out = out;
+			this.in = in;
+			this.remote = remote;
+		}
+
+		public void putMessage (Message m) {
+			out.add(m);
+			remote.signal();
+		}
+
+		public Message getMessage () {
+			return in.poll();
+		}
+
+		/* size() walks the queue, but it is only asked for by the metrics */
+		public int getInboundDepth () {
+			return in.size();
+		}
+
+		/* what we sent is in the inbound queue of the other node till it takes it */
+		public int getOutboundDepth () {
+			return out.size();
+		}
+	}
+
+
+
+	public LoopbackTransport (Network network) {
+		this.network = network;
+	}
+
+
+
+
+
+	public Peer[] connect (int pid, ClusterConfig config, LogWriter logger, EventSignal events) throws IOException {
+		this.pid = pid;
+		network.join(pid, events);
+		logger.log("Waiting for all to be connected");
+		network.awaitAll(config);
+
+		Peer[] peerAt = new Peer[config.size()];
+		for (int i = 0; i < config.size(); i++) {
+			int other = config.getId(i);
+			if (other != pid) {
+				peerAt[i] = new LoopbackPeer(network.channel(pid, other), network.channel(other, pid), network.events(other));
+			}
+		}
+		logger.log("All connected");
+		return peerAt;
+	}
+
+
+
+
+
+	/* rejoin and takeRejoined: The nodes of a JVM come and go together, nobody restarts alone */
+	public Peer[] rejoin (int pid, ClusterConfig config, LogWriter logger, EventSignal events) throws IOException {
+		throw new IOException("Nodes of a LoopbackTransport can not rejoin");
+	}
+
+	public Peer[] takeRejoined () {
+		return null;
+	}
+
+
+
+
+
+	/* close: Everything we put is in the queues of the other nodes already */
+	public void close () {
+		network.leave(pid);
+	}
+}
@@ -10,55 +10,49 @@ import java.io.Serializable;
 public class Message implements Serializable {
 
 
-	private static final long serialVersionUID = -6489775508455470787L;
+	/* Changed whenever the fields change (long timestamps, ack vectors, instruments, parts), so a
+	 * node of an older version fails the stream with a clean version mismatch (WIRE_OBJECT).
+	 */
+	private static final long serialVersionUID = 2714635086432196154L;
 	private char messageType;		// whether the message is update or ack
-	private double tstamp;			// lamport timestamp of the sender
+	private long tstamp;			// lamport timestamp of the sender (ties are broken by senderId)
 	private int senderId;			// sendser's Pid
 	private int[] update;			// if this is update, we need update vals.
-	private double ackFor;			// this will tell us, which message the ack is for
-	private int totalAcks;
+	private long[] acks;			// cumulative acks: acks[s] is the latest update of Ps we received ('e': {updates sent})
+	private int instrument;			// ordering domain the message belongs to (0 if there is only one)
+	private int[] parts;			// deltas a coalesced update was merged from, null if it was not
+	private transient long submitTime;	// System.nanoTime() of submit() on this node, not sent
+	private transient MessagePool pool;	// where recycle() gives it back, null if it was not decoded from one
 
 
 
-	public Message (char mType, double t, int id) {
+	public Message (char mType, long t, int id) {
 		this.messageType = mType;
 		this.tstamp = t;
 		this.senderId = id;
-		this.ackFor = -1.0;
-		this.totalAcks = 0;
+		this.acks = null;
+		this.instrument = 0;
+		this.parts = null;
 	}
 
 
 	/* Pretty much self-explanatory methods */
 
 
-	public synchronized void incrementAck () {
-		totalAcks++;
+	/* The ack vector can ride on any message. Entry s says that the sender has received
+	 * every update of Ps up to and including that timestamp (-1 if none yet). The array is
+	 * shared between the copies sent to every peer, so it must not be changed once set.
+	 */
+	public void setAcks (long[] a) {
+		acks = a;
 	}
 
 
-	public int getAcks () {
-		return totalAcks;
-	}
-	
-	public void setAckFor (Message m) {
-		if (messageType != 'a') {
-			System.err.println("[ERROR] Acknowledgment is sent with messageType 'a' only");
-			return;
-		}
-		ackFor = m.getTimestamp();
-	}
-
-	public double getAckFor () {
-		if (messageType != 'a') {
-			System.err.println("[ERROR] Acknowledgment-For is valid in messageType 'a' only");
-			return -1.0;
-		}
-		return ackFor;
+	public long[] getAcks () {
+		return acks;
 	}
 
 	public void setUpdate (int[] up) {
-		update = new int[2];
 		update = up;
 	}
 
@@ -68,7 +62,7 @@ public class Message implements Serializable {
 	}
 
 
-	public double getTimestamp () {
+	public long getTimestamp () {
 		return tstamp;
 	}
 
@@ -83,7 +77,81 @@ public class Message implements Serializable {
 	}
 
 
-	public void setTime (double time) {
+	public void setTime (long time) {
 		tstamp = time;
 	}
+
+
+	/* Every instrument is ordered on its own: timestamps, acks and sequence numbers
+	 * only mean something within the instrument of the message.
+	 */
+	public int getInstrument () {
+		return instrument;
+	}
+
+
+	public void setInstrument (int i) {
+		instrument = i;
+	}
+
+
+	/* A coalesced update carries the deltas it was merged from so that every node can tell
+	 * who contributed what: two values per contribution, in the order they were submitted.
+	 * The update itself is their sum. Shared like the ack vector, must not be changed once set.
+	 */
+	public int[] getParts () {
+		return parts;
+	}
+
+
+	public void setParts (int[] p) {
+		parts = p;
+	}
+
+
+	/* For the metrics: when our application submitted the update. It is not sent, on the
+	 * other nodes it is 0.
+	 */
+	public long getSubmitTime () {
+		return submitTime;
+	}
+
+
+	public void setSubmitTime (long t) {
+		submitTime = t;
+	}
+
+
+	/* getContributions: Number of updates of the application this one stands for */
+	public int getContributions () {
+		return parts != null ? parts.length / 2 : 1;
+	}
+
+
+	/* Pooling of received messages (see MessagePool). A message is recycled only by the one who
+	 * took it out of the inbound queue, and only when nobody else has it: after that the decoding
+	 * thread fills it with the next frame. Its ack vector is kept, decode() writes the next one
+	 * into it if the length is the same. recycle() does nothing for messages which are not pooled.
+	 */
+	void recycle () {
+		if (pool != null) {
+			pool.give(this);
+		}
+	}
+
+
+	void setPool (MessagePool p) {
+		pool = p;
+	}
+
+
+	void reuse (char mType, long t, int id) {
+		messageType = mType;
+		tstamp = t;
+		senderId = id;
+		update = null;
+		instrument = 0;
+		parts = null;
+		submitTime = 0;
+	}
 }
@@ -0,0 +1,156 @@
+/* This class implements the compact binary wire format for Message objects. Instead of pushing
+ * class descriptors and reflective field data through ObjectOutputStream, every message is laid
+ * out in a frame which can be encoded into and decoded from a ByteBuffer directly.
+ * Frame layout (big endian):
+ * 		type (1) | flags (1) | timestamp (8) | sender (4) | instrument (4) | update[0] (4) |
+ * 		update[1] (4) | n (2) | acks[0] (8) ... acks[n-1] (8)
+ * The header has a fixed size of HEADER_SIZE bytes, it is followed by the ack vector (if any).
+ * A coalesced update (FLAG_PARTS) adds the deltas it was merged from after the ack vector:
+ * 		k (2) | parts[0] (4) ... parts[2k-1] (4)
+ */
+
+package middleware;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+public class MessageCodec {
+
+	public static final int HEADER_SIZE = 28;
+	public static final int MAX_NODES = 1024;			// longest ack vector we accept
+	public static final int MAX_PARTS = 1024;			// most contributions of a coalesced update
+	public static final int MAX_FRAME_SIZE = HEADER_SIZE + 8 * MAX_NODES + 2 + 8 * MAX_PARTS;
+
+	private static final int ACKS_OFFSET = HEADER_SIZE - 2;	// position of n in the header
+	private static final byte FLAG_UPDATE = 0x01;		// frame carries update values
+	private static final byte FLAG_PARTS = 0x02;		// frame carries the parts of a coalesced update
+
+
+
+
+
+	/* frameSize: Number of bytes encode() will write for this message */
+	public static int frameSize (Message m) {
+		long[] acks = m.getAcks();
+		int[] parts = m.getParts();
+		return HEADER_SIZE + (acks != null ? 8 * acks.length : 0) + (parts != null ? 2 + 4 * parts.length : 0);
+	}
+
+
+
+
+
+	/* encode: Writes the message as one frame at the current position of the buffer.
+	 * The caller has to make sure that at least frameSize(m) bytes are remaining.
+	 */
+	public static void encode (Message m, ByteBuffer buf) {
+		int[] update = m.getUpdate();
+		long[] acks = m.getAcks();
+		int[] parts = m.getParts();
+
+		buf.put((byte) m.getType());
+		buf.put((byte) ((update != null ? FLAG_UPDATE : 0) | (parts != null ? FLAG_PARTS : 0)));
+		buf.putLong(m.getTimestamp());
+		buf.putInt(m.getSender());
+		buf.putInt(m.getInstrument());
+		if (update != null) {
+			buf.putInt(update[0]);
+			buf.putInt(update[1]);
+		} else {
+			buf.putInt(0);
+			buf.putInt(0);
+		}
+		if (acks != null) {
+			buf.putShort((short) acks.length);
+			for (int i = 0; i < acks.length; i++) {
+				buf.putLong(acks[i]);
+			}
+		} else {
+			buf.putShort((short) 0);
+		}
+		if (parts != null) {
+			buf.putShort((short) (parts.length / 2));
+			for (int i = 0; i < parts.length; i++) {
+				buf.putInt(parts[i]);
+			}
+		}
+	}
+
+
+
+
+
+	/* decode: Reads one frame from the current position of the buffer and returns the message.
+	 * If there is not a complete frame in the buffer, nothing is consumed and null is returned.
+	 */
+	public static Message decode (ByteBuffer buf) throws StreamCorruptedException {
+		return decode(buf, null);
+	}
+
+	/* decode: The same, into a message of the pool (a new one if pool is null). The ack vector of
+	 * a recycled message is filled again if it has the right length. The update values always go
+	 * to a new array, the application may keep it.
+	 */
+	static Message decode (ByteBuffer buf, MessagePool pool) throws StreamCorruptedException {
+		if (buf.remaining() < HEADER_SIZE) {
+			return null;
+		}
+		int n = buf.getShort(buf.position() + ACKS_OFFSET);
+		if (n < 0 || n > MAX_NODES) {
+			throw new StreamCorruptedException("Ack vector of length " + n + " in frame");
+		}
+		int size = HEADER_SIZE + 8 * n;
+		int k = 0;
+		if ((buf.get(buf.position() + 1) & FLAG_PARTS) != 0) {
+			if (buf.remaining() < size + 2) {
+				return null;
+			}
+			k = buf.getShort(buf.position() + size);
+			if (k < 1 || k > MAX_PARTS) {
+				throw new StreamCorruptedException("Coalesced update of " + k + " parts in frame");
+			}
+			size += 2 + 8 * k;
+		}
+		if (buf.remaining() < size) {
+			return null;
+		}
+
+		char type = (char) (buf.get() & 0xff);
+		byte flags = buf.get();
+		long tstamp = buf.getLong();
+		int sender = buf.getInt();
+		int instrument = buf.getInt();
+		int u0 = buf.getInt();
+		int u1 = buf.getInt();
+		buf.getShort();
+
+		Message m = pool != null ? pool.take(type, tstamp, sender) : new Message(type, tstamp, sender);
+		long[] acks = m.getAcks();
+		m.setAcks(null);
+		m.setInstrument(instrument);
+		if ((flags & FLAG_UPDATE) != 0) {
+			int[] update = new int[2];
+			update[0] = u0;
+			update[1] = u1;
+			m.setUpdate(update);
+		}
+		if (n > 0) {
+			if (acks == null || acks.length != n) {
+				acks = new long[n];
+			}
+			for (int i = 0; i < n; i++) {
+				acks[i] = buf.getLong();
+			}
+			m.setAcks(acks);
+		}
+		if (k > 0) {
+			buf.getShort();
+			int[] parts = new int[2 * k];
+			for (int i = 0; i < parts.length; i++) {
+				parts[i] = buf.getInt();
+			}
+			m.setParts(parts);
+		}
+		return m;
+	}
+}
@@ -0,0 +1,42 @@
+/* This class keeps the Message objects of one inbound connection for reuse. The thread which
+ * decodes the frames of the connection takes messages from it (MessageCodec.decode()), and whoever
+ * is done with a message which nobody keeps, an acknowledgment or a control message, gives it back
+ * with Message.recycle(). Those are usually other threads, so the free messages are kept in an
+ * MpscRingBuffer whose only consumer is the decoding thread.
+ * Updates are never given back: they go to the application, which may keep them. When the pool is
+ * empty a new message is made, when it is full a recycled one is left to the garbage collector.
+ */
+
+package middleware;
+
+class MessagePool {
+
+	private MpscRingBuffer<Message> free;
+
+
+
+	MessagePool (int capacity) {
+		free = new MpscRingBuffer<Message>(capacity);
+	}
+
+
+
+
+
+	/* take: A message to decode into. Called by the decoding thread only. */
+	Message take (char type, long t, int id) {
+		Message m = free.poll();
+		if (m == null) {
+			m = new Message(type, t, id);
+			m.setPool(this);
+			return m;
+		}
+		m.reuse(type, t, id);
+		return m;
+	}
+
+	/* give: Called by Message.recycle() from any thread */
+	void give (Message m) {
+		free.offer(m);
+	}
+}
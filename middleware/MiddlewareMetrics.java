@@ -0,0 +1,380 @@
+/* This class collects the measurements of one node and shows them over JMX (see
+ * MiddlewareMetricsMXBean). Recording is cheap and never blocks: counters are LongAdders and the
+ * latencies go to LatencyHistograms, so the middleware, the workers and the transports record from
+ * their own threads. Queue depths are not recorded at all, they are read when someone asks.
+ * The DistributionLayer creates it, registers it when it is connected and unregisters it when it
+ * exits.
+ */
+
+package middleware;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class MiddlewareMetrics implements MiddlewareMetricsMXBean {
+
+	private static final int TYPES = 128;		// message types are ASCII characters
+	private static final long RATE_WINDOW = 1000000000L;	// ns
+
+	private int pid;
+	private ClusterConfig config;
+	private ObjectName name;
+
+	private LatencyHistogram submitToDeliver;
+	private LatencyHistogram[] ackRtt;		// by position in the config
+	private LongAdder[] sentMessages;		// by message type
+	private LongAdder[] sentBytes;
+	private LongAdder[] receivedMessages;
+	private LongAdder[] receivedBytes;
+	private LongAdder delivered;
+	private LongAdder throttled;		// submits which waited for a credit
+	private LongAdder throttledNanos;	// and how long
+	private LongAdder rejected;		// trySubmits without a credit
+	private volatile int peakPending;
+
+	// delivery rate: deliveries in the last full window
+	private long windowStart;
+	private long windowCount;
+	private double rate;
+
+	// what the gauges read, set by attach()
+	private volatile Peer[] peerAt;
+	private DomainWorker[] workers;
+	private Collection<Message> toApplication;
+	private CreditWindow window;
+
+
+
+	public MiddlewareMetrics (int pid, ClusterConfig config) {
+		this.pid = pid;
+		this.config = config;
+		submitToDeliver = new LatencyHistogram();
+		ackRtt = new LatencyHistogram[config.size()];
+		for (int i = 0; i < ackRtt.length; i++) {
+			ackRtt[i] = new LatencyHistogram();
+		}
+		sentMessages = adders();
+		sentBytes = adders();
+		receivedMessages = adders();
+		receivedBytes = adders();
+		delivered = new LongAdder();
+		throttled = new LongAdder();
+		throttledNanos = new LongAdder();
+		rejected = new LongAdder();
+		peakPending = 0;
+		windowStart = System.nanoTime();
+		windowCount = 0;
+		rate = 0;
+	}
+
+	private static LongAdder[] adders () {
+		LongAdder[] a = new LongAdder[TYPES];
+		for (int i = 0; i < TYPES; i++) {
+			a[i] = new LongAdder();
+		}
+		return a;
+	}
+
+
+
+
+
+	/* attach: Gives us the queues whose depths we show, and the window of our updates */
+	void attach (Peer[] peerAt, DomainWorker[] workers, Collection<Message> toApplication, CreditWindow window) {
+		this.workers = workers;
+		this.toApplication = toApplication;
+		this.window = window;
+		this.peerAt = peerAt;
+	}
+
+	/* register and unregister: With the platform MBean server. A failure only costs us the metrics. */
+	void register () {
+		try {
+			name = new ObjectName("middleware:type=DistributionLayer,node=P" + pid);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);		// left over by an earlier layer of the same node
+			}
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			System.err.println("[ERROR] Could not register the metrics of P" + pid + " with JMX: " + e.getMessage());
+			name = null;
+		}
+	}
+
+	void unregister () {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			System.err.println("[ERROR] Could not unregister the metrics of P" + pid + " from JMX: " + e.getMessage());
+		}
+		name = null;
+	}
+
+
+
+
+
+	/* The recording methods, called from the threads which see the events */
+
+	void sent (Message m, int copies) {
+		int t = m.getType() & (TYPES - 1);
+		sentMessages[t].add(copies);
+		sentBytes[t].add((long) copies * MessageCodec.frameSize(m));
+	}
+
+	void received (Message m) {
+		int t = m.getType() & (TYPES - 1);
+		receivedMessages[t].increment();
+		receivedBytes[t].add(MessageCodec.frameSize(m));
+	}
+
+	void submitToDeliver (long nanos) {
+		submitToDeliver.record(nanos);
+	}
+
+	void ackRtt (int index, long nanos) {
+		ackRtt[index].record(nanos);
+	}
+
+	void throttled (long nanos) {
+		throttled.increment();
+		throttledNanos.add(nanos);
+	}
+
+	void rejected () {
+		rejected.increment();
+	}
+
+	void pending (int n) {
+		if (n > peakPending) {
+			peakPending = n;		// a race may lose a peak to a smaller one, close enough
+		}
+	}
+
+	/* delivered: Called by the one worker which publishes at a time */
+	void delivered (int n) {
+		delivered.add(n);
+		rollRate(System.nanoTime());
+	}
+
+	private synchronized void rollRate (long now) {
+		if (now - windowStart >= RATE_WINDOW) {
+			long count = delivered.sum();
+			rate = (count - windowCount) * 1e9 / (now - windowStart);
+			windowStart = now;
+			windowCount = count;
+		}
+	}
+
+
+
+
+
+	/* The MXBean */
+
+	public long getSubmitToDeliverCount () {
+		return submitToDeliver.getCount();
+	}
+
+	public double getSubmitToDeliverMeanMicros () {
+		return submitToDeliver.getMean() / 1000;
+	}
+
+	public long getSubmitToDeliverP50Micros () {
+		return submitToDeliver.getPercentile(50) / 1000;
+	}
+
+	public long getSubmitToDeliverP90Micros () {
+		return submitToDeliver.getPercentile(90) / 1000;
+	}
+
+	public long getSubmitToDeliverP99Micros () {
+		return submitToDeliver.getPercentile(99) / 1000;
+	}
+
+	public long getSubmitToDeliverP999Micros () {
+		return submitToDeliver.getPercentile(99.9) / 1000;
+	}
+
+	public long getSubmitToDeliverMaxMicros () {
+		return submitToDeliver.getMax() / 1000;
+	}
+
+	public String[] getPeers () {
+		String[] p = new String[config.size() - 1];
+		int k = 0;
+		for (int i = 0; i < config.size(); i++) {
+			if (config.getId(i) != pid) {
+				p[k++] = "P" + config.getId(i);
+			}
+		}
+		return p;
+	}
+
+	public long[] getAckRttCount () {
+		long[] v = new long[config.size() - 1];
+		int k = 0;
+		for (int i = 0; i < config.size(); i++) {
+			if (config.getId(i) != pid) {
+				v[k++] = ackRtt[i].getCount();
+			}
+		}
+		return v;
+	}
+
+	public long[] getAckRttP50Micros () {
+		return ackRttPercentile(50);
+	}
+
+	public long[] getAckRttP99Micros () {
+		return ackRttPercentile(99);
+	}
+
+	public long[] getAckRttMaxMicros () {
+		return ackRttPercentile(100);
+	}
+
+	private long[] ackRttPercentile (double p) {
+		long[] v = new long[config.size() - 1];
+		int k = 0;
+		for (int i = 0; i < config.size(); i++) {
+			if (config.getId(i) != pid) {
+				v[k++] = (p >= 100 ? ackRtt[i].getMax() : ackRtt[i].getPercentile(p)) / 1000;
+			}
+		}
+		return v;
+	}
+
+	public int[] getPeerInboundDepth () {
+		return peerDepths(true);
+	}
+
+	public int[] getPeerOutboundDepth () {
+		return peerDepths(false);
+	}
+
+	private int[] peerDepths (boolean inbound) {
+		int[] v = new int[config.size() - 1];
+		Peer[] p = peerAt;
+		if (p == null) {
+			return v;
+		}
+		int k = 0;
+		for (int i = 0; i < p.length; i++) {
+			if (p[i] != null) {
+				v[k++] = inbound ? p[i].getInboundDepth() : p[i].getOutboundDepth();
+			}
+		}
+		return v;
+	}
+
+	public int getWorkerQueueDepth () {
+		if (peerAt == null) {
+			return 0;
+		}
+		int n = 0;
+		for (int w = 0; w < workers.length; w++) {
+			n += workers[w].getQueueDepth();
+		}
+		return n;
+	}
+
+	public int getApplicationQueueDepth () {
+		return peerAt == null ? 0 : toApplication.size();
+	}
+
+	public int getPendingUpdates () {
+		if (peerAt == null) {
+			return 0;
+		}
+		int n = 0;
+		for (int w = 0; w < workers.length; w++) {
+			n += workers[w].getPendingUpdates();
+		}
+		return n;
+	}
+
+	public int getPeakPendingUpdates () {
+		return peakPending;
+	}
+
+	public Map<String, Long> getSentMessages () {
+		return byType(sentMessages);
+	}
+
+	public Map<String, Long> getSentBytes () {
+		return byType(sentBytes);
+	}
+
+	public Map<String, Long> getReceivedMessages () {
+		return byType(receivedMessages);
+	}
+
+	public Map<String, Long> getReceivedBytes () {
+		return byType(receivedBytes);
+	}
+
+	private static Map<String, Long> byType (LongAdder[] a) {
+		TreeMap<String, Long> m = new TreeMap<String, Long>();
+		for (int t = 0; t < TYPES; t++) {
+			long v = a[t].sum();
+			if (v != 0) {
+				m.put(String.valueOf((char) t), v);
+			}
+		}
+		return m;
+	}
+
+	public int getWindowSize () {
+		return peerAt == null ? 0 : window.getSize();
+	}
+
+	public int getInFlightUpdates () {
+		return peerAt == null ? 0 : window.inFlight();
+	}
+
+	public boolean isBackpressureActive () {
+		return peerAt != null && window.availablePermits() <= 0;
+	}
+
+	public long getThrottledSubmits () {
+		return throttled.sum();
+	}
+
+	public long getThrottledMillis () {
+		return throttledNanos.sum() / 1000000;
+	}
+
+	public long getRejectedSubmits () {
+		return rejected.sum();
+	}
+
+	public long getDeliveredUpdates () {
+		return delivered.sum();
+	}
+
+	public double getDeliveryRate () {
+		rollRate(System.nanoTime());
+		synchronized (this) {
+			return rate;
+		}
+	}
+
+	public void reset () {
+		submitToDeliver.reset();
+		for (int i = 0; i < ackRtt.length; i++) {
+			ackRtt[i].reset();
+		}
+		peakPending = 0;
+	}
+}
@@ -0,0 +1,64 @@
+/* This interface is what a node shows over JMX, under the name
+ * 		middleware:type=DistributionLayer,node=P<pid>
+ * Latencies are in microseconds. Arrays about peers are in the order of getPeers(). Message and
+ * byte counts are by message type; bytes are the size of the binary frames (MessageCodec), also
+ * on transports which do not encode the messages.
+ */
+
+package middleware;
+
+import java.util.Map;
+
+public interface MiddlewareMetricsMXBean {
+
+	/* from submit() of an update of ours till it was handed to our application */
+	long getSubmitToDeliverCount ();
+	double getSubmitToDeliverMeanMicros ();
+	long getSubmitToDeliverP50Micros ();
+	long getSubmitToDeliverP90Micros ();
+	long getSubmitToDeliverP99Micros ();
+	long getSubmitToDeliverP999Micros ();
+	long getSubmitToDeliverMaxMicros ();
+
+	/* from sending an update of ours till the peer acknowledged it (Lamport) or the sequencer
+	 * ordered it (sequencer)
+	 */
+	String[] getPeers ();
+	long[] getAckRttCount ();
+	long[] getAckRttP50Micros ();
+	long[] getAckRttP99Micros ();
+	long[] getAckRttMaxMicros ();
+
+	/* queue depths right now */
+	int[] getPeerInboundDepth ();
+	int[] getPeerOutboundDepth ();
+	int getWorkerQueueDepth ();
+	int getApplicationQueueDepth ();
+
+	/* updates the ordering engines hold which are not delivered yet, now and the most so far */
+	int getPendingUpdates ();
+	int getPeakPendingUpdates ();
+
+	Map<String, Long> getSentMessages ();
+	Map<String, Long> getSentBytes ();
+	Map<String, Long> getReceivedMessages ();
+	Map<String, Long> getReceivedBytes ();
+
+	/* flow control: the window of our updates in flight, how many are in flight now, whether
+	 * submit() would wait right now, and how often and how long it waited or trySubmit() was
+	 * rejected so far
+	 */
+	int getWindowSize ();
+	int getInFlightUpdates ();
+	boolean isBackpressureActive ();
+	long getThrottledSubmits ();
+	long getThrottledMillis ();
+	long getRejectedSubmits ();
+
+	/* updates handed to the application, all of them and per second over the last second */
+	long getDeliveredUpdates ();
+	double getDeliveryRate ();
+
+	/* reset: Starts the histograms and the peak afresh. The counts keep going. */
+	void reset ();
+}
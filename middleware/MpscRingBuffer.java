@@ -0,0 +1,75 @@
+/* This class is the RingBuffer for any number of producer threads and one consumer thread, the
+ * same scheme LogWriter uses for its lines. A producer claims a sequence number with a
+ * compare-and-set (only if the slot is free), fills the slot and then publishes the sequence number
+ * in it. The consumer takes slot after slot as long as the expected sequence number is published.
+ * A claimed slot which is not published yet counts for size(), so the ring is not empty while a
+ * producer is in the middle of offer().
+ */
+
+package middleware;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class MpscRingBuffer<E> extends RingBuffer<E> {
+
+	private final AtomicLong claimed = new AtomicLong(0);	// next sequence number for a producer
+	private final AtomicLongArray published;		// slot i holds the element of sequence number published[i]
+	private volatile long head = 0;				// next sequence number to take, moved by the consumer
+
+
+
+	public MpscRingBuffer (int capacity) {
+		super(capacity);
+		published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			published.set(i, -1);
+		}
+	}
+
+
+
+
+
+	public boolean offer (E e) {
+		long seq;
+		do {
+			seq = claimed.get();
+			if (seq - head >= slots.length) {
+				return false;
+			}
+		} while (! claimed.compareAndSet(seq, seq + 1));
+		int i = (int) seq & mask;
+		slots[i] = e;
+		published.set(i, seq);
+		signalConsumer();
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E poll () {
+		long h = head;
+		int i = (int) h & mask;
+		if (published.get(i) != h) {
+			return null;
+		}
+		E e = (E) slots[i];
+		slots[i] = null;
+		head = h + 1;
+		return e;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E peek () {
+		long h = head;
+		int i = (int) h & mask;
+		if (published.get(i) != h) {
+			return null;
+		}
+		return (E) slots[i];
+	}
+
+	public int size () {
+		return (int) (claimed.get() - head);
+	}
+}
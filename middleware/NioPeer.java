@@ -0,0 +1,180 @@
+/* This class is one peer connection served by NioTransport. It holds the two queues between the
+ * middleware and the transport, plus one buffer for each direction. The middleware pushes and pulls
+ * messages the same way as with SocketThread. The actual reads and writes on the (non-blocking)
+ * channel are only done from the selector thread of NioTransport.
+ */
+
+package middleware;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class NioPeer implements Peer {
+
+	private static final int BUFFER_SIZE = 64 * 1024;		// holds several frames of the largest size
+
+	private SocketChannel channel;
+	private NioTransport transport;
+	private SelectionKey key;
+	private SpscRingBuffer<Message> s2m;		// filled by our thread only
+	private MessagePool pool;		// for the frames we decode
+	private MpscRingBuffer<Message> m2s;		// filled by the middleware and the workers
+	private ByteBuffer inBuf;		// partially received frames stay here between reads
+	private ByteBuffer outBuf;		// kept in 'read mode', remaining bytes are not yet written
+	private AtomicBoolean scheduled;	// true while this peer waits in the write queue of the transport
+	private volatile boolean closed;		// nothing is sent any more, putMessage() drops
+
+
+
+	NioPeer (SocketChannel ch, NioTransport t) {
+		channel = ch;
+		transport = t;
+		s2m = new SpscRingBuffer<Message>(SocketThread.QUEUE_CAPACITY);
+		pool = new MessagePool(SocketThread.POOL_CAPACITY);
+		m2s = new MpscRingBuffer<Message>(SocketThread.QUEUE_CAPACITY);
+		inBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		outBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		outBuf.flip();
+		scheduled = new AtomicBoolean(false);
+		closed = false;
+	}
+
+
+
+
+
+	/* The queue methods used by the middleware. Putting a message also tells the transport
+	 * that this peer has something to write, so it does not wait for the next read event.
+	 */
+
+	public void putMessage (Message m) {
+		if (closed) {
+			return;			// nobody would take it out of the ring
+		}
+		m2s.put(m);
+		if (scheduled.compareAndSet(false, true)) {
+			transport.scheduleWrite(this);
+		}
+	}
+
+	public Message getMessage () {
+		return s2m.poll();
+	}
+
+	public int getInboundDepth () {
+		return s2m.size();
+	}
+
+	public int getOutboundDepth () {
+		return m2s.size();
+	}
+
+
+
+
+
+	/* Methods below are called by the selector thread only */
+
+	void setKey (SelectionKey k) {
+		key = k;
+	}
+
+	boolean isRegistered () {
+		return key != null;
+	}
+
+	SocketChannel getChannel () {
+		return channel;
+	}
+
+	boolean isClosed () {
+		return closed;
+	}
+
+	boolean hasPendingOutput () {
+		return !closed && (outBuf.hasRemaining() || !m2s.isEmpty());
+	}
+
+
+
+
+
+	/* read: Reads whatever is available on the channel and decodes all complete frames into
+	 * the inbound queue. Returns the number of messages received, or -1 if the other side has
+	 * closed the connection.
+	 */
+	int read () throws IOException {
+		int n;
+		int received = 0;
+		while ((n = channel.read(inBuf)) > 0) {
+			inBuf.flip();
+			Message mi;
+			while ((mi = MessageCodec.decode(inBuf, pool)) != null) {
+				s2m.put(mi);
+				received++;
+			}
+			inBuf.compact();
+		}
+		return n < 0 ? -1 : received;
+	}
+
+
+
+
+
+	/* flush: Encodes the queued messages and writes them to the channel until either the queue
+	 * is empty or the socket buffer is full. In the latter case we ask the selector to tell us
+	 * when the channel is writable again. Everything queued since the last flush goes out
+	 * together, at most maxBatch messages per write.
+	 */
+	void flush (int maxBatch) throws IOException {
+		scheduled.set(false);
+		if (closed) {
+			return;
+		}
+		while (true) {
+			if (!outBuf.hasRemaining()) {
+				outBuf.clear();
+				Message mo;
+				int count = 0;
+				while (count < maxBatch && (mo = m2s.peek()) != null && outBuf.remaining() >= MessageCodec.frameSize(mo)) {
+					MessageCodec.encode(m2s.poll(), outBuf);
+					count++;
+				}
+				outBuf.flip();
+				if (!outBuf.hasRemaining()) {
+					break;
+				}
+			}
+			channel.write(outBuf);
+			if (outBuf.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+
+
+
+
+	/* close: Closes the channel. Whatever is left in the outbound queue is dropped, the inbound
+	 * queue is left for the middleware to pull.
+	 */
+	void close () {
+		closed = true;
+		m2s.clear();
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("[ERROR] Error closing the channel");
+		}
+	}
+}
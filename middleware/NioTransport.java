@@ -0,0 +1,252 @@
+/* This class is runnable. It replaces one SocketThread per peer with a single thread which serves
+ * the sockets to all the other nodes using a Selector and non-blocking SocketChannels. Messages are
+ * exchanged in the binary frames of MessageCodec.
+ * Reads are done when the selector reports a channel readable. Writes are done as soon as the
+ * middleware puts a message for a peer: the peer schedules itself and wakes up the selector, so an
+ * outbound message never waits for a read to time out.
+ * Writes are coalesced: whatever the middleware queued for a peer while the selector thread was busy
+ * goes out in a single write (up to the maxBatch of the BatchPolicy). The selector thread serves all
+ * peers, so it does not linger; an idle peer's message is written right away.
+ * A node which restarts connects to us again while we run. add() serves its socket too; the channel
+ * is registered by the selector thread, before the first write to it.
+ */
+
+package middleware;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NioTransport implements Runnable {
+
+	private Selector selector;
+	private NioPeer[] peers;
+	private ConcurrentLinkedQueue<NioPeer> writeQueue;	// peers having new outbound messages
+	private ConcurrentLinkedQueue<NioPeer> added;		// peers of add() which are not registered yet
+	private AtomicBoolean wakeupPending;
+	private volatile boolean exitFlag = false;
+	private LogWriter logger;
+	private EventSignal events;		// wakes up the middleware when we received something
+	private BatchPolicy batchPolicy = BatchPolicy.DEFAULT;
+
+
+
+	/* The sockets have to be created from SocketChannels (i.e. socket.getChannel() is not null)
+	 * and must not have been used in blocking mode before.
+	 */
+	public NioTransport (Socket[] sockets, LogWriter l, EventSignal events) throws IOException {
+		logger = l;
+		this.events = events;
+		selector = Selector.open();
+		writeQueue = new ConcurrentLinkedQueue<NioPeer>();
+		added = new ConcurrentLinkedQueue<NioPeer>();
+		wakeupPending = new AtomicBoolean(false);
+		peers = new NioPeer[sockets.length];
+		for (int i = 0; i < sockets.length; i++) {
+			SocketChannel ch = sockets[i].getChannel();
+			if (ch == null) {
+				throw new IOException("Socket to " + sockets[i].getInetAddress() + " has no channel");
+			}
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+			peers[i] = new NioPeer(ch, this);
+			peers[i].setKey(ch.register(selector, SelectionKey.OP_READ, peers[i]));
+		}
+	}
+
+
+
+
+
+	private String getTimestamp() {
+		Date date = new Date();
+		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy h:mm:ss a : ");
+		String formattedDate = sdf.format(date);
+		return formattedDate; // 09/01/2014 4:48:16 PM
+	}
+
+
+
+
+
+	public Peer[] getPeers () {
+		return peers;
+	}
+
+	/* Has to be called before the thread is started */
+	public void setBatchPolicy (BatchPolicy p) {
+		batchPolicy = p;
+	}
+
+
+
+
+
+	/* add: Serves one more socket, of a node which connected to us again. Called from another
+	 * thread while we run.
+	 */
+	NioPeer add (Socket s) throws IOException {
+		SocketChannel ch = s.getChannel();
+		if (ch == null) {
+			throw new IOException("Socket to " + s.getInetAddress() + " has no channel");
+		}
+		ch.configureBlocking(false);
+		ch.socket().setTcpNoDelay(true);
+		NioPeer p = new NioPeer(ch, this);
+		added.add(p);
+		selector.wakeup();
+		return p;
+	}
+
+	/* register: Selector thread only. Registers the peers which were added since the last time. */
+	private void register () {
+		NioPeer p;
+		while ((p = added.poll()) != null) {
+			try {
+				p.setKey(p.getChannel().register(selector, SelectionKey.OP_READ, p));
+			} catch (ClosedChannelException e) {
+				p.close();
+			}
+			NioPeer[] more = new NioPeer[peers.length + 1];
+			System.arraycopy(peers, 0, more, 0, peers.length);
+			more[peers.length] = p;
+			peers = more;
+		}
+	}
+
+
+
+
+
+	/* scheduleWrite: Called by a peer (from the middleware thread) when it has new outbound
+	 * messages. The selector is woken up only once for a burst of messages.
+	 */
+	void scheduleWrite (NioPeer p) {
+		writeQueue.add(p);
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+
+
+
+
+	/* The transport will push out all the pending messages and exit when this flag is set. */
+	public void setExitFlag () {
+		exitFlag = true;
+		selector.wakeup();
+	}
+
+
+
+
+
+	/* The run method waits on the selector for any of the channels to become readable (or
+	 * writable, if an earlier write was incomplete) or for a wakeup from the middleware. Then
+	 * it serves all the peers which have something to do.
+	 */
+	public void run() {
+		logger.log("[Transport] Starting selector thread handling " + peers.length + " sockets");
+
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println(getTimestamp() + "[ERROR] Select failed");
+				e.printStackTrace();
+				break;
+			}
+			wakeupPending.set(false);
+			register();
+
+			// first push out whatever the middleware gave us
+			NioPeer p;
+			while ((p = writeQueue.poll()) != null) {
+				write(p);
+			}
+
+			// then serve the channels the selector told us about
+			boolean received = false;
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				p = (NioPeer) key.attachment();
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isWritable()) {
+					write(p);
+				}
+				if (key.isValid() && key.isReadable()) {
+					try {
+						int n = p.read();
+						if (n > 0) {
+							received = true;
+						} else if (n < 0) {
+							//System.err.println(getTimestamp() + "[Transport] Received EOF on the socket");
+							received |= p.getInboundDepth() > 0;	// the last frames may have come with the EOF
+							p.close();
+						}
+					} catch (IOException e) {
+						System.err.println(getTimestamp() + "[Transport] Error while reading from socket");
+						e.printStackTrace();
+						p.close();
+					}
+				}
+			}
+
+			if (received && events != null) {
+				events.signal();
+			}
+
+			if (exitFlag && !hasPendingOutput()) {
+				break;
+			}
+		}
+
+		for (int i = 0; i < peers.length; i++) {
+			peers[i].close();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			System.err.println(getTimestamp() + "[ERROR] Error closing the selector");
+		}
+	}
+
+
+
+
+
+	private void write (NioPeer p) {
+		if (! p.isRegistered()) {
+			register();		// added after we registered the others in this round
+		}
+		try {
+			p.flush(batchPolicy.getMaxBatch());
+		} catch (IOException e) {
+			System.err.println(getTimestamp() + "[Transport] Error sending message");
+			e.printStackTrace();
+			p.close();
+		}
+	}
+
+	private boolean hasPendingOutput () {
+		for (int i = 0; i < peers.length; i++) {
+			if (peers[i].hasPendingOutput()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,82 @@
+/* This interface is what the middleware expects from a total-order protocol. The middleware owns
+ * the sockets, the transports, the queues to and from the application and the exit strategy. The
+ * engine decides how updates are stamped, which messages go out for them and when an update can be
+ * handed to the application. Every node of a cluster has to run the same engine.
+ * There is one engine for every instrument. All its methods are called from the DomainWorker
+ * thread of its instrument only, so an engine needs no locking.
+ * The engine talks back to the middleware through a Context.
+ * When a node rejoins a running cluster, the engines of a live node write their state for it and
+ * the engines of the new node read it before its worker starts (see DistributionLayer).
+ * Engines are selected by the "ordering" property of the ClusterConfig:
+ * 		lamport		LamportOrderingEngine (default)
+ * 		sequencer	SequencerOrderingEngine
+ */
+
+package middleware;
+
+import java.util.List;
+
+public interface OrderingEngine {
+
+	/* What the middleware provides to the engine */
+	public interface Context {
+
+		/* multicast: Sends the message to every other node. The same object may be given to all
+		 * the transports, so it must not be changed after this.
+		 */
+		void multicast (Message m);
+
+		/* sendTo: Sends the message to the node at this position of the config */
+		void sendTo (int index, Message m);
+
+		/* deliver: Hands an update ('u' message) to the application. Has to be called in the
+		 * total order.
+		 */
+		void deliver (Message m);
+
+		/* ackRtt: For the metrics. The node at this position took this long to acknowledge (or,
+		 * for a sequencer, to order) one of our updates.
+		 */
+		void ackRtt (int index, long nanos);
+	}
+
+
+
+	/* submit: An update from our application. It is not stamped yet. */
+	void submit (Message m);
+
+	/* receive: A message from another node. The middleware has already checked that the sender
+	 * is in the config. Returns false if the engine does not know this type of message.
+	 */
+	boolean receive (Message m);
+
+	/* flush: Called once in every round of the middleware, after all the received messages and
+	 * all the submitted updates have been handled. Anything the engine held back goes out here.
+	 */
+	void flush ();
+
+	/* isIdle: True if nothing we know of waits to be delivered, our own updates included */
+	boolean isIdle ();
+
+	/* getPendingCount: About how many updates wait to be delivered, for the metrics */
+	int getPendingCount ();
+
+	/* getLatest: Timestamp of the latest update we received from the node at this position, -1 if
+	 * the engine does not go by it. A node which rejoins stamps its updates past the latest of
+	 * every node.
+	 */
+	long getLatest (int index);
+
+	/* writeState: For the node at this position, which rejoins: our state as messages for its
+	 * readState(), added to toNode, and what the other nodes have to know, added to toOthers (to
+	 * be received by their engines). latest is the latest update of that node any node received.
+	 * Updates in the state are copies, the messages are not changed after this.
+	 */
+	void writeState (int index, long latest, List<Message> toNode, List<Message> toOthers);
+
+	/* readState: One message written by writeState() on a live node, in order. The updates in it
+	 * (the messages with an update) are delivered by us later, just like received ones. Messages
+	 * which the state already covered are dropped quietly when they come in again.
+	 */
+	void readState (Message m);
+}
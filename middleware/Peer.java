@@ -0,0 +1,23 @@
+/* This interface is the middleware's view of a connection to another node. Each peer has an
+ * outbound queue which is filled by putMessage() and an inbound queue which is drained by
+ * getMessage(). SocketThread implements it with one thread per socket, NioPeer implements it
+ * on top of the single selector thread of NioTransport, DuplexPeer with a reader and a writer
+ * thread per socket. The peers of a LoopbackTransport are
+ * plain queues to another node in the same JVM. A Transport gives the middleware its peers.
+ */
+
+package middleware;
+
+public interface Peer {
+
+	/* queue a message to be sent to this peer */
+	public void putMessage (Message m);
+
+	/* pull the next message received from this peer, null if there is none */
+	public Message getMessage ();
+
+	/* number of messages received and not pulled yet, and queued and not sent yet (for the metrics) */
+	public int getInboundDepth ();
+
+	public int getOutboundDepth ();
+}
@@ -0,0 +1,164 @@
+/* This class is a bounded queue between threads on a preallocated ring of slots, without locks and
+ * without allocating anything per message. SpscRingBuffer is for one producer and one consumer,
+ * MpscRingBuffer for any number of producers and one consumer. There is always only one consumer.
+ * offer() fails if the ring is full, put() waits for the consumer to free a slot. poll() never
+ * waits; take(), poll(timeout) and drainTo(c, timeout) park the consumer till a producer puts
+ * something. Producers unpark the consumer only if it is parked, so the fast path is a few plain
+ * and volatile memory accesses. drainTo() moves everything there is in one call.
+ * The capacity has to be a power of 2.
+ */
+
+package middleware;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public abstract class RingBuffer<E> {
+
+	private static final long FULL_PARK = 10000;	// ns, a producer waiting for a free slot checks this often
+
+	protected final Object[] slots;
+	protected final int mask;
+	private volatile Thread waiter;		// the consumer, while it is parked in take() or poll(timeout)
+
+
+
+	protected RingBuffer (int capacity) {
+		if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+			throw new IllegalArgumentException("Capacity of a ring buffer has to be a power of 2");
+		}
+		slots = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+
+
+
+
+	/* offer: Puts e in the ring, false if it is full */
+	public abstract boolean offer (E e);
+
+	/* poll: Takes the oldest element, null if there is none. Called by the consumer only. */
+	public abstract E poll ();
+
+	/* peek: The oldest element without taking it, null if there is none. Consumer only. */
+	public abstract E peek ();
+
+	/* size: Number of elements in the ring. Only a snapshot if other threads are at work. */
+	public abstract int size ();
+
+	public boolean isEmpty () {
+		return size() == 0;
+	}
+
+	public int capacity () {
+		return slots.length;
+	}
+
+	/* clear: Drops everything in the ring. Consumer only. */
+	public void clear () {
+		while (poll() != null) {
+			// dropped
+		}
+	}
+
+
+
+
+
+	/* put: Puts e in the ring, waits till there is room for it */
+	public void put (E e) {
+		while (! offer(e)) {
+			signalConsumer();
+			LockSupport.parkNanos(FULL_PARK);
+		}
+	}
+
+	/* take: Takes the oldest element, waits till there is one */
+	public E take () throws InterruptedException {
+		E e = poll();
+		if (e != null) {
+			return e;
+		}
+		waiter = Thread.currentThread();
+		try {
+			while ((e = poll()) == null) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+			return e;
+		} finally {
+			waiter = null;
+		}
+	}
+
+	/* poll: Takes the oldest element, waits up to the timeout for one. null on timeout. */
+	public E poll (long timeout, TimeUnit unit) throws InterruptedException {
+		E e = poll();
+		if (e != null) {
+			return e;
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		waiter = Thread.currentThread();
+		try {
+			while ((e = poll()) == null) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) {
+					return null;
+				}
+				LockSupport.parkNanos(this, left);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+			}
+			return e;
+		} finally {
+			waiter = null;
+		}
+	}
+
+
+
+
+
+	/* drainTo: Moves everything in the ring into c and returns how many there were */
+	public int drainTo (Collection<? super E> c) {
+		int n = 0;
+		E e;
+		while ((e = poll()) != null) {
+			c.add(e);
+			n++;
+		}
+		return n;
+	}
+
+	/* drainTo: Waits up to the timeout for something, then moves everything there is into c.
+	 * Returns the number moved, 0 on timeout.
+	 */
+	public int drainTo (Collection<? super E> c, long timeout, TimeUnit unit) throws InterruptedException {
+		E e = poll(timeout, unit);
+		if (e == null) {
+			return 0;
+		}
+		c.add(e);
+		return 1 + drainTo(c);
+	}
+
+
+
+
+
+	/* signalConsumer: Called by the producers after they published an element. The consumer sets
+	 * waiter before it checks the ring for the last time, and we read it after publishing, so one
+	 * of us sees the other.
+	 */
+	protected final void signalConsumer () {
+		Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/* This class orders the updates through a fixed sequencer node instead of acknowledgments. Every
+ * node sends its updates to the sequencer only. The sequencer gives each update the next global
+ * sequence number and multicasts it to everybody. Every node delivers the updates in the order of
+ * their sequence numbers, so nobody waits for acknowledgments from all the other nodes: an update
+ * is delivered one round trip to the sequencer after it was submitted (the sequencer's own updates
+ * right away). The price is that all the updates go through one node.
+ * The sequencer is the node with the smallest id, unless the "sequencer" property of the config
+ * names another one. The sequencer does not fail over; if it goes away the cluster stops.
+ * Message types: 'u' (update, to the sequencer) and 'o' (ordered update, timestamp is the global
+ * sequence number and sender is the node which submitted it).
+ * A node which rejoins gets the next sequence number to deliver and the ordered updates waiting for
+ * their turn from a live node ('y' and 'o'). The sequencer itself can not rejoin.
+ */
+
+package middleware;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+public class SequencerOrderingEngine implements OrderingEngine {
+
+	private int pid;
+	private LogicalClock clock;
+	private OrderingEngine.Context ctx;
+	private int sequencerIndex;
+	private boolean isSequencer;
+	private long nextSeq;			// sequencer only: number for the next update
+	private long nextDeliver;		// sequence number of the next update to deliver
+	private UpdateHeap pending;		// ordered updates which came ahead of their turn
+	private int outstanding;		// our updates which did not come back from the sequencer yet
+	private LongQueue sentTimes;		// System.nanoTime() when those went to the sequencer
+	private long imported;			// sequence numbers up to this came with the state we rejoined with
+	private int oldOwn;			// updates of ours among them, sent before we restarted
+
+
+
+	public SequencerOrderingEngine (int pid, ClusterConfig conf, LogicalClock clock, OrderingEngine.Context ctx) {
+		this.pid = pid;
+		this.clock = clock;
+		this.ctx = ctx;
+
+		String seq = conf.getProperty("sequencer", null);
+		if (seq != null) {
+			try {
+				sequencerIndex = conf.indexOf(Integer.parseInt(seq.trim()));
+			} catch (NumberFormatException e) {
+				sequencerIndex = -1;
+			}
+			if (sequencerIndex < 0) {
+				throw new IllegalArgumentException("Sequencer " + seq + " is not in the cluster config");
+			}
+		} else {
+			sequencerIndex = 0;
+			for (int i = 1; i < conf.size(); i++) {
+				if (conf.getId(i) < conf.getId(sequencerIndex)) {
+					sequencerIndex = i;
+				}
+			}
+		}
+		isSequencer = conf.getId(sequencerIndex) == pid;
+		nextSeq = 1;
+		nextDeliver = 1;
+		pending = new UpdateHeap(64);		// sequence numbers are unique
+		outstanding = 0;
+		sentTimes = new LongQueue();
+		imported = 0;
+		oldOwn = 0;
+	}
+
+
+
+
+
+	private String getTimestamp() {
+		Date date = new Date();
+		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy h:mm:ss a : ");
+		String formattedDate = sdf.format(date);
+		return formattedDate; // 09/01/2014 4:48:16 PM
+	}
+
+
+
+
+
+	/* submit: The sequencer orders its own updates directly, everybody else sends them to the
+	 * sequencer. The local stamp only tells our updates apart, it is not used for the order.
+	 */
+	public void submit (Message m) {
+		clock.increment();
+		m.setTime(clock.getTime());
+		outstanding++;
+		if (isSequencer) {
+			order(m);
+		} else {
+			ctx.sendTo(sequencerIndex, m);
+			sentTimes.add(System.nanoTime());
+		}
+	}
+
+
+
+
+
+	public boolean receive (Message mi) {
+		if (mi.getType() == 'u') {
+			if (! isSequencer) {
+				System.err.println(getTimestamp() + "[ERROR] P" + mi.getSender() + " sent an update to P" + pid + " which is not the sequencer");
+				return true;
+			}
+			order(mi);
+			mi.recycle();		// order() made its own message for it
+		} else if (mi.getType() == 'o') {
+			accept(mi);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+
+
+
+
+	/* Nothing is held back, messages go out when they are submitted or ordered */
+	public void flush () {
+	}
+
+	public boolean isIdle () {
+		return pending.isEmpty() && outstanding == 0;
+	}
+
+	public int getPendingCount () {
+		return pending.size() + outstanding;
+	}
+
+	/* The sequence numbers tell everything, timestamps do not matter */
+	public long getLatest (int index) {
+		return -1;
+	}
+
+
+
+
+
+	/* writeState: The next sequence number we deliver ('y') and a copy of every ordered update
+	 * waiting behind it. The channel from the sequencer is FIFO, so what came to us from it is a
+	 * prefix of what it sends the rejoining node.
+	 */
+	public void writeState (int index, long latest, List<Message> toNode, List<Message> toOthers) {
+		toNode.add(new Message('y', nextDeliver, pid));
+		for (int i = 0; i < pending.size(); i++) {
+			Message m = pending.get(i);
+			Message c = new Message('o', m.getTimestamp(), m.getSender());
+			c.setUpdate(m.getUpdate());
+			c.setParts(m.getParts());
+			toNode.add(c);
+		}
+	}
+
+	public void readState (Message m) {
+		if (isSequencer) {
+			throw new IllegalStateException("The sequencer P" + pid + " can not rejoin");
+		}
+		if (m.getType() == 'y') {
+			nextDeliver = m.getTimestamp();
+			imported = Math.max(imported, m.getTimestamp() - 1);
+		} else if (m.getType() == 'o') {
+			pending.add(m);
+			imported = Math.max(imported, m.getTimestamp());
+			if (m.getSender() == pid) {
+				oldOwn++;
+			}
+		}
+	}
+
+
+
+
+
+	/* order: Sequencer only. Gives the update the next sequence number and multicasts it. Our own
+	 * copy is delivered right away, it is the next in line by construction.
+	 */
+	private void order (Message m) {
+		Message o = new Message('o', nextSeq++, m.getSender());
+		o.setUpdate(m.getUpdate());
+		o.setParts(m.getParts());
+		ctx.multicast(o);
+		accept(o);
+	}
+
+
+
+
+
+	/* accept: Takes an ordered update and delivers it, plus anything waiting behind it. As the
+	 * channel from the sequencer is FIFO, updates should come in order anyway. The application
+	 * gets them as ordinary updates stamped with their sequence number.
+	 */
+	private void accept (Message o) {
+		if (o.getTimestamp() <= imported) {
+			o.recycle();		// came with the state we rejoined with
+			return;
+		}
+		if (o.getTimestamp() < nextDeliver) {
+			System.err.println(getTimestamp() + "[WARNING] Duplicate update with sequence number " + o.getTimestamp());
+			o.recycle();
+			return;
+		}
+		pending.add(o);
+		while (! pending.isEmpty() && pending.peekTime() == nextDeliver) {
+			Message m = pending.poll();
+			if (m.getSender() == pid && oldOwn > 0) {
+				oldOwn--;		// nobody waits for it since we restarted
+			} else if (m.getSender() == pid) {
+				outstanding--;
+				if (! isSequencer) {
+					ctx.ackRtt(sequencerIndex, System.nanoTime() - sentTimes.poll(System.nanoTime()));
+				}
+			}
+			Message d = new Message('u', m.getTimestamp(), m.getSender());
+			d.setUpdate(m.getUpdate());
+			d.setParts(m.getParts());
+			ctx.deliver(d);
+			m.recycle();		// d has taken over its update
+			nextDeliver++;
+		}
+	}
+}
@@ -1,30 +1,63 @@
 /* This class is runnable. It is spawned by middleware and handles communication on a particular socket. It sends the messages coming from middleware over a socket using
  * ObjectOutputStream() and reads incoming messages using ObjectInputStream().
+ * Alternatively, the thread can use the compact binary frames of MessageCodec (WIRE_BINARY) which
+ * avoids the object serialization overhead. Both ends of the socket have to use the same format.
+ * Outbound messages are coalesced according to a BatchPolicy: everything queued for the socket is
+ * written and flushed at once.
  */
 
 package middleware;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 
-public class SocketThread implements Runnable {
+public class SocketThread implements Runnable, Peer {
 	
+	public static final int WIRE_OBJECT = 0;		// java object serialization
+	public static final int WIRE_BINARY = 1;		// binary frames of MessageCodec
+	private static final int BUFFER_SIZE = 64 * 1024;		// holds several frames of the largest size
+	static final int QUEUE_CAPACITY = 16384;		// messages, each way
+	static final int POOL_CAPACITY = 1024;		// received messages kept for reuse (MessagePool)
+
 	private Socket socket;
-	private LinkedBlockingQueue<Message> s2m;
-	private LinkedBlockingQueue<Message> m2s;
-	private boolean exitFlag = false;
+	private SpscRingBuffer<Message> s2m;		// filled by our thread only
+	private MessagePool pool;		// for the frames we decode
+	private MpscRingBuffer<Message> m2s;		// filled by the middleware and the workers
+	private volatile boolean exitFlag = false;
+	private volatile boolean closed = false;	// our thread is gone, putMessage() drops
 	private LogWriter logger;
+	private int wireFormat;
+	private EventSignal events;		// wakes up the middleware when we received something
+	private BatchPolicy batchPolicy = BatchPolicy.DEFAULT;
+	private CountDownLatch ready = new CountDownLatch(1);	// opened when we are initialized (or gave up)
+	private volatile boolean started = false;		// initialization went through
+
+	private ObjectInputStream oIn;
+	private ObjectOutputStream oOut;
+	private InputStream in;
+	private OutputStream out;
+	private ByteBuffer inBuf;		// partially received frames stay here between reads
+	private ByteBuffer outBuf;
 
 
 	public SocketThread (Socket s, LogWriter l) {
+		this(s, l, WIRE_OBJECT, null);
+	}
+
+	public SocketThread (Socket s, LogWriter l, int wireFormat, EventSignal events) {
 		this.socket = s;
-		s2m = new LinkedBlockingQueue<Message>();
-		m2s = new LinkedBlockingQueue<Message>();
+		s2m = new SpscRingBuffer<Message>(QUEUE_CAPACITY);
+		pool = new MessagePool(POOL_CAPACITY);
+		m2s = new MpscRingBuffer<Message>(QUEUE_CAPACITY);
 		logger = l;
+		this.wireFormat = wireFormat;
+		this.events = events;
 	}
 	
 	
@@ -48,25 +81,58 @@ public class SocketThread implements Runnable {
 	
 	public void putMessage (Message m) {
 		//System.out.println(getTimestamp() + "Received message stamped " + m.getTimestamp() + " to send on socket");
-		if (m.getAcks() != 0) {
-			System.err.println("[ERROR] Ack counter is not proper " + m.getAcks());
+		if (closed) {
+			return;			// nobody would take it out of the ring
 		}
-		m2s.add(m);
+		m2s.put(m);
 	}
 	
 	public Message getMessage () {
 		return s2m.poll();
 	}
+	
+	public int getInboundDepth () {
+		return s2m.size();
+	}
+	
+	public int getOutboundDepth () {
+		return m2s.size();
+	}
+
+
+
+
+	
+	/* awaitReady: Waits till the thread has initialized. Returns false if it could not */
+	public boolean awaitReady () throws InterruptedException {
+		ready.await();
+		return started;
+	}
 
 
 
 
 	
-	/* The thread will exit when it is interrupted and this flag is set.
-	 * So providing a setter method for the class.
+	/* Has to be called before the thread is started */
+	public void setBatchPolicy (BatchPolicy p) {
+		batchPolicy = p;
+	}
+
+
+
+
+	
+	/* The thread will exit when this flag is set. So providing a setter method for the class.
+	 * We do not interrupt the thread: that would close the channel of the socket under it before
+	 * it wrote out what is queued. Shutting down the input side ends a blocked read instead.
 	 */
 	public void setExitFlag () {
 		exitFlag = true;
+		try {
+			socket.shutdownInput();
+		} catch (IOException e) {
+			// already closed by the other side, the read ends anyway
+		}
 	}
 
 
@@ -77,10 +143,20 @@ public class SocketThread implements Runnable {
 	 * it finds a message there, it has to send it on the socket. It also
 	 * has to receive the message on the socket and put that message into
 	 * the queue s2m which is polled by the middle ware. 
-	 * After receiving the exit message, the socket thread waits for middle ware
-	 * to pull the current messages and then exits.
+	 * After receiving the exit message, the socket thread sends what is left
+	 * and exits. Once it is gone, whatever the middleware still puts is dropped, so nobody waits
+	 * for room in a ring which is not drained any more.
 	 */
 	public void run() {
+		try {
+			serve();
+		} finally {
+			closed = true;
+			m2s.clear();
+		}
+	}
+
+	private void serve () {
 		
 		// Phase 1: Initialization
 		
@@ -90,33 +166,47 @@ public class SocketThread implements Runnable {
 		logger.log("[Socket " + socket.getLocalPort() + "] Starting socket thread handling socket to " + socket.getInetAddress());
 		
 		
-		InputStream in = null;
-		ObjectInputStream  oIn = null;
-		OutputStream out = null;
-		ObjectOutputStream oOut = null;
-		
 		/* First create streams on the socket so that we are good to go */
 		try {
-			/* Create the output streams first. This is because the ObjectInputStream class
-			 * does a blocking read waiting for a header to be received. ObjectOutputStream
-			 * sends this header when created. Hence create output streams first. And yes,
-			 * flush them too.
-			 */
-			out = socket.getOutputStream();
-			oOut = new ObjectOutputStream(out);
-			oOut.flush();
-			in = socket.getInputStream();
-			oIn = new ObjectInputStream(in);
+			if (wireFormat == WIRE_BINARY) {
+				/* Binary frames do not need any stream header. We just keep one buffer for
+				 * each direction and reuse them for every batch.
+				 */
+				out = socket.getOutputStream();
+				in = socket.getInputStream();
+				outBuf = ByteBuffer.allocate(BUFFER_SIZE);
+				inBuf = ByteBuffer.allocate(BUFFER_SIZE);
+			} else {
+				/* Create the output streams first. This is because the ObjectInputStream class
+				 * does a blocking read waiting for a header to be received. ObjectOutputStream
+				 * sends this header when created. Hence create output streams first. And yes,
+				 * flush them too.
+				 */
+				out = new BufferedOutputStream(socket.getOutputStream());
+				oOut = new ObjectOutputStream(out);
+				oOut.flush();
+				in = socket.getInputStream();
+				oIn = new ObjectInputStream(in);
+			}
 			// System.out.println("Done creating the streams on the socket");
 			
 		} catch (IOException e) {
 			System.err.println(getTimestamp() + "[ERROR] IO Error while creating streams on socket");
 			e.printStackTrace();
+			ready.countDown();
 			return;
 		}
 		
 		
 		
+		/* We do the batching ourselves, so Nagle's algorithm would only add delay. */
+		try {
+			socket.setTcpNoDelay(true);
+		} catch (SocketException e) {
+			System.err.println(getTimestamp() + "[ERROR] Error disabling Nagle's algorithm");
+		}
+		
+		
 		/* The read of the sockets are default blocking. This means there is a possibility when
 		 * all the nodes are reading and no one is writing thus keeping the application dangling
 		 * in the limbo. Better set the timeout so that reads will timeout and we will have chance
@@ -130,10 +220,9 @@ public class SocketThread implements Runnable {
 		}
 		
 		
-		/* now indicate the parent that we are ready to go. This works same as middleware-application
-		 * relationship.
-		 */
-		s2m.add(new Message('u',0.0,-1));
+		/* now indicate the parent that we are ready to go. */
+		started = true;
+		ready.countDown();
 		
 		
 		
@@ -143,29 +232,21 @@ public class SocketThread implements Runnable {
 		
 		/* This loop is the heart of the socket handling thread. It sends the messages pushed by the 
 		 * middle ware on this socket. It also receives the messages sent to this process by the other
-		 * node. After getting the exit signal, it waits for middle ware to pull all the messages in
-		 * its inbound queue and then exits.
+		 * node. After getting the exit signal, it pushes out the outbound queue and exits; the inbound
+		 * queue stays for the middleware to pull.
 		 */
 		while (true) {
 			
-			Message mo = null;
-			Message mi = null;
-						
-		
-			
-			/* If we have a message from middleware, then send it
+			/* If we have messages from middleware, then send them in batches
 			 */
-			while ((mo = m2s.poll()) != null) {
+			while (! m2s.isEmpty()) {
 				try {
-					/*System.out.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Sending a '" + mo.getType() + "' Message stamped " + mo.getTimestamp() 
-							+ " ack count " + mo.getAcks());*/
-					oOut.writeObject(mo);
-					oOut.flush();
-		
+					writeBatch();
 				
 				} catch (IOException e) {
 					System.err.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Error sending message");
 					e.printStackTrace();
+					return;			// the connection is broken, the node may come back on a new one
 				}
 			}
 			
@@ -173,9 +254,7 @@ public class SocketThread implements Runnable {
 			 * then put it in the queue to middleware.
 			 */
 			try {
-				mi = (Message) oIn.readObject();
-				//System.out.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Received a '" + mi.getType() + "' Message stamped " + mi.getTimestamp());
-
+				readMessages();
 
 			} catch (ClassNotFoundException ce) {
 				System.err.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] No such class found: Message");
@@ -184,31 +263,30 @@ public class SocketThread implements Runnable {
 				// nothing to do here. Its expected.
 			} catch (EOFException end) {
 				//System.err.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Received EOF on the socket");
-				return;
+				if (! exitFlag) {
+					return;
+				}
+				// our own shutdown of the input, go on to the exit
 			} catch (IOException ioe) {
-				System.err.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Error while reading Message from socket");
-				ioe.printStackTrace();
+				if (! exitFlag) {
+					System.err.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Error while reading Message from socket");
+					ioe.printStackTrace();
+					return;			// the same as an EOF
+				}
 			} 
 
-			// if we received something, then put it in the queue for middleware.
-			if (mi != null) {
-				//System.out.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Adding received message to queue to middleware");
-				s2m.add(mi);
-			}
-
 			
-			if (Thread.interrupted() && exitFlag) {
+			if (exitFlag) {
 				
 				// send all the out bound messages
-				while ( (mo = m2s.poll() ) != null) {
+				while (! m2s.isEmpty()) {
 					try {
-						//System.out.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Sending a '" + mo.getType() + "' Message stamped " + mo.getTimestamp() );
-						oOut.writeObject(mo);
-			
+						writeBatch();
 					
 					} catch (IOException e) {
 						System.err.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Error sending message");
 						e.printStackTrace();
+						m2s.clear();
 					}
 				}
 
@@ -218,22 +296,109 @@ public class SocketThread implements Runnable {
 					System.err.println(getTimestamp() + "[ERROR] Error closing the socket");
 				}
 
+				// we are done. The middleware pulls what is left in the inbound queue after we exit.
+				return;
+			}
+		}
 
-				// wait for the middle ware to pull the newly received messages. 
-				while (! s2m.isEmpty() ) {
-					try {
-						//System.out.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Waiting for middleware to pull messages");
-						Thread.sleep(2000);
-					} catch (InterruptedException e) {
-						// nothing
-					}
+
+	}
+
+
+
+
+
+	/* writeBatch: Sends the messages waiting in the outbound queue with one write and one flush.
+	 * If only one message is waiting we are idle and it goes out right away. If more are waiting
+	 * we are busy, and we also wait up to the linger time for the next message as long as the
+	 * batch is not full.
+	 */
+	private void writeBatch () throws IOException {
+		Message mo = m2s.poll();
+		if (mo == null) {
+			return;
+		}
+		boolean busy = ! m2s.isEmpty();
+		int count = 0;
+		if (wireFormat == WIRE_BINARY) {
+			outBuf.clear();
+		}
+
+		while (mo != null) {
+			//System.out.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Sending a '" + mo.getType() + "' Message stamped " + mo.getTimestamp());
+			bufferMessage(mo);
+			if (++count >= batchPolicy.getMaxBatch()) {
+				break;
+			}
+			mo = m2s.poll();
+			if (mo == null && busy && batchPolicy.getLingerNanos() > 0) {
+				try {
+					mo = m2s.poll(batchPolicy.getLingerNanos(), TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();		// keep the status
 				}
-				// we are done. 
-				return;
 			}
 		}
 
+		if (wireFormat == WIRE_BINARY) {
+			out.write(outBuf.array(), 0, outBuf.position());
+			out.flush();
+		} else {
+			oOut.flush();
+		}
+	}
+
+	private void bufferMessage (Message mo) throws IOException {
+		if (wireFormat == WIRE_BINARY) {
+			if (outBuf.remaining() < MessageCodec.frameSize(mo)) {
+				out.write(outBuf.array(), 0, outBuf.position());
+				outBuf.clear();
+			}
+			MessageCodec.encode(mo, outBuf);
+		} else {
+			oOut.writeObject(mo);
+		}
+	}
+
+
+
+
+
+	/* readMessages: Reads from the socket and puts every received message in the queue for
+	 * middleware. With binary frames, a read may return only a part of a frame (or time out in
+	 * the middle of it). The bytes received so far are kept in inBuf until the rest arrives.
+	 */
+	private void readMessages () throws IOException, ClassNotFoundException {
+		if (wireFormat != WIRE_BINARY) {
+			Message mi = (Message) oIn.readObject();
+			//System.out.println(getTimestamp() + "[Socket " + socket.getLocalPort() + "] Received a '" + mi.getType() + "' Message stamped " + mi.getTimestamp());
+			s2m.put(mi);
+			signalMiddleware();
+			return;
+		}
+
+		int n = in.read(inBuf.array(), inBuf.position(), inBuf.remaining());
+		if (n < 0) {
+			throw new EOFException();
+		}
+		inBuf.position(inBuf.position() + n);
+		inBuf.flip();
+		Message mi;
+		boolean received = false;
+		while ((mi = MessageCodec.decode(inBuf, pool)) != null) {
+			s2m.put(mi);
+			received = true;
+		}
+		inBuf.compact();
+		if (received) {
+			signalMiddleware();
+		}
+	}
 
+	private void signalMiddleware () {
+		if (events != null) {
+			events.signal();
+		}
 	}
 
 
@@ -0,0 +1,73 @@
+/* This class is the RingBuffer for one producer thread and one consumer thread. Each side owns one
+ * counter: the producer moves tail, the consumer moves head. Neither needs a compare-and-set, and
+ * each keeps a cached copy of the other's counter so it reads the shared one only when the ring
+ * looks full (producer) or empty (consumer).
+ */
+
+package middleware;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SpscRingBuffer<E> extends RingBuffer<E> {
+
+	private final AtomicLong tail = new AtomicLong(0);	// next slot to fill, moved by the producer
+	private final AtomicLong head = new AtomicLong(0);	// next slot to take, moved by the consumer
+	private long headCache = 0;		// producer's view of head
+	private long tailCache = 0;		// consumer's view of tail
+
+
+
+	public SpscRingBuffer (int capacity) {
+		super(capacity);
+	}
+
+
+
+
+
+	public boolean offer (E e) {
+		long t = tail.get();
+		if (t - headCache >= slots.length) {
+			headCache = head.get();
+			if (t - headCache >= slots.length) {
+				return false;
+			}
+		}
+		slots[(int) t & mask] = e;
+		tail.set(t + 1);		// a full fence: signalConsumer() must not read waiter before this
+		signalConsumer();
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E poll () {
+		long h = head.get();
+		if (h >= tailCache) {
+			tailCache = tail.get();
+			if (h >= tailCache) {
+				return null;
+			}
+		}
+		int i = (int) h & mask;
+		E e = (E) slots[i];
+		slots[i] = null;
+		head.lazySet(h + 1);		// the producer only needs to see it eventually
+		return e;
+	}
+
+	@SuppressWarnings("unchecked")
+	public E peek () {
+		long h = head.get();
+		if (h >= tailCache) {
+			tailCache = tail.get();
+			if (h >= tailCache) {
+				return null;
+			}
+		}
+		return (E) slots[(int) h & mask];
+	}
+
+	public int size () {
+		return (int) (tail.get() - head.get());
+	}
+}
@@ -0,0 +1,669 @@
+/* This class is the transport over TCP, for nodes in separate processes or machines. Every node
+ * listens on its port from the config and accepts a connection from every node with a larger id,
+ * while it connects to every node with a smaller id, all of them at the same time. A node which is
+ * not up yet is tried again after a wait which doubles every time, up to "connect.timeout" ms in
+ * all. The connecting node sends its id first, so the accepting side knows who it is. Accepting
+ * the nodes with larger ids has the same deadline, after which the listener is closed.
+ * The sockets are served either by one SocketThread per peer (THREADS), by a single NioTransport
+ * thread for all of them (NIO, default) or by a reader and a writer thread for every peer (DUPLEX,
+ * see DuplexPeer). All of them coalesce outbound messages by a BatchPolicy.
+ * Once connected, an Acceptor thread keeps listening. A node which restarted connects to all the
+ * others itself (rejoin()); its new socket is served like the others and its peer waits for the
+ * middleware in takeRejoined(). It marks its handshake as a rejoin and waits for an answer, so it
+ * is not taken for a node starting with the cluster by one which has not finished connecting yet.
+ */
+
+package middleware;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+public class TcpTransport implements Transport {
+
+	public static final int THREADS = 0;		// one SocketThread per peer
+	public static final int NIO = 1;		// one selector thread for all peers
+	public static final int DUPLEX = 2;		// a reader and a writer thread per peer
+	private static final long BACKOFF_MIN = 5;	// ms, first wait before connecting again
+	private static final long BACKOFF_MAX = 500;	// ms, longest wait between two attempts
+
+	private final int wireFormat = SocketThread.WIRE_BINARY;	// all nodes have to agree on this
+	private int mode;
+	private BatchPolicy batchPolicy;
+	private int pid;
+	private ClusterConfig config;
+	private LogWriter logger;
+	private EventSignal events;
+	private NioTransport nioTransport;
+	private SocketThread[] socketRunnables;
+	private Thread[] socketThreads;
+	private DuplexPeer[] duplexPeers;
+	private ServerSocketChannel listener;	// stays open after connecting, for nodes which come back
+	private Thread acceptor;
+	private volatile Peer[] rejoined;	// peers of nodes which connected again, till they are taken
+
+
+
+	public TcpTransport () {
+		this(NIO, BatchPolicy.DEFAULT);
+	}
+
+	public TcpTransport (int mode, BatchPolicy p) {
+		if (mode != THREADS && mode != NIO && mode != DUPLEX) {
+			throw new IllegalArgumentException("Unknown TCP transport mode " + mode);
+		}
+		this.mode = mode;
+		batchPolicy = p;
+	}
+
+
+
+
+
+	private String getTimestamp() {
+		Date date = new Date();
+		SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy h:mm:ss a : ");
+		String formattedDate = sdf.format(date);
+		return formattedDate; // 09/01/2014 4:48:16 PM
+	}
+
+
+
+
+
+	/* connect: We start listening first, so the others can connect to us right away. Then we
+	 * accept connections from the nodes with larger ids in this thread while a Connector thread
+	 * for every node with a smaller id connects to it. Then the sockets are handed to the threads
+	 * which serve them.
+	 */
+	public Peer[] connect (int pid, ClusterConfig config, LogWriter logger, EventSignal events) throws IOException {
+		this.pid = pid;
+		this.config = config;
+		this.logger = logger;
+		this.events = events;
+
+		listener = listen();
+		//logger.log("[Middleware] Waiting for all to be connected");
+		logger.log("Waiting for all to be connected");
+		long deadline = System.nanoTime() + connectTimeout() * 1000000L;
+		Connector[] connectors = startConnectors(deadline, false);
+		Socket[] serverSockets;
+		Socket[] clientSockets;
+		try {
+			serverSockets = createServerSockets(listener, deadline);
+			clientSockets = joinConnectors(connectors);
+		} catch (IOException e) {
+			listener.close();
+			throw e;
+		}
+		//logger.log("[Middleware] All connected");
+		logger.log("All connected");
+
+		Socket[] all = new Socket[serverSockets.length + clientSockets.length];
+		System.arraycopy(serverSockets, 0, all, 0, serverSockets.length);
+		System.arraycopy(clientSockets, 0, all, serverSockets.length, clientSockets.length);
+		Peer[] peers = start(all);
+		startAcceptor();
+
+		/* The sockets are in config order: first the nodes with larger ids, then the ones with smaller ids */
+		Peer[] peerAt = new Peer[config.size()];
+		int p = 0;
+		for (int i = 0; i < config.size(); i++) {
+			if (config.getId(i) > pid) {
+				peerAt[i] = peers[p++];
+			}
+		}
+		for (int i = 0; i < config.size(); i++) {
+			if (config.getId(i) < pid) {
+				peerAt[i] = peers[p++];
+			}
+		}
+		return peerAt;
+	}
+
+
+
+
+
+	/* rejoin: We restarted and the others are running. Nobody connects to us now, so we connect
+	 * to every other node ourselves, in config order. Afterwards we listen like after connect().
+	 */
+	public Peer[] rejoin (int pid, ClusterConfig config, LogWriter logger, EventSignal events) throws IOException {
+		this.pid = pid;
+		this.config = config;
+		this.logger = logger;
+		this.events = events;
+
+		listener = listen();
+		logger.log("Connecting to the running nodes");
+		Connector[] connectors = startConnectors(System.nanoTime() + connectTimeout() * 1000000L, true);
+		Socket[] sockets;
+		try {
+			sockets = joinConnectors(connectors);
+		} catch (IOException e) {
+			listener.close();
+			throw e;
+		}
+		logger.log("All connected");
+
+		Peer[] peers = start(sockets);
+		startAcceptor();
+		Peer[] peerAt = new Peer[config.size()];
+		int p = 0;
+		for (int i = 0; i < config.size(); i++) {
+			if (config.getId(i) != pid) {
+				peerAt[i] = peers[p++];
+			}
+		}
+		return peerAt;
+	}
+
+	public Peer[] takeRejoined () {
+		if (rejoined == null) {
+			return null;
+		}
+		synchronized (this) {
+			Peer[] r = rejoined;
+			rejoined = null;
+			return r;
+		}
+	}
+
+	private long connectTimeout () {
+		try {
+			return Long.parseLong(config.getProperty("connect.timeout", "30000"));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Bad connect.timeout in the cluster config");
+		}
+	}
+
+
+
+
+
+	/* close: This method tells the threads handling the sockets to exit and waits for them.
+	 * They write out what is queued for their peers before they go. Nobody can connect to us
+	 * again after this.
+	 * The join method returns void, hence we cant detect a failure to join there.
+	 */
+	public void close () {
+		if (listener != null) {
+			try {
+				listener.close();		// ends the accept() of the Acceptor
+			} catch (IOException e) {
+				System.err.println(getTimestamp() + "[ERROR] Error closing the listening socket");
+			}
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) {
+				System.err.println(getTimestamp() + "[ERROR] Interrupted while waiting for the acceptor to exit");
+			}
+		}
+		if (duplexPeers != null) {
+			for (int i = 0; i < duplexPeers.length; i++) {
+				duplexPeers[i].close();
+			}
+			return;
+		}
+		if (nioTransport != null) {
+			nioTransport.setExitFlag();
+		} else {
+			for (int i = 0; i < socketRunnables.length; i++) {
+				socketRunnables[i].setExitFlag();
+			}
+		}
+		for (int i = 0; i < socketThreads.length; i++) {
+			try {
+				socketThreads[i].join();
+				// System.out.println(getTimestamp() + "[Middleware] Thread " + i + " exited");
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				System.err.println(getTimestamp() + "[ERROR] Interrupted while waiting for socket thread to exit");
+			}
+		}
+	}
+
+
+
+
+
+	/* start: Hands the sockets to the threads of our mode and returns their peers, in the same
+	 * order.
+	 */
+	private Peer[] start (Socket[] all) throws IOException {
+		if (mode == NIO) {
+			Peer[] peers = startNioTransport(all);
+			socketThreads = new Thread[1];
+			socketThreads[0] = new Thread(nioTransport, "NioTransport-P" + pid);
+			socketThreads[0].start();
+			return peers;
+		} else if (mode == DUPLEX) {
+			return startDuplexPeers(all);
+		}
+		socketRunnables = new SocketThread[all.length];
+		socketThreads = new Thread[all.length];
+		startSocketThreads(all);
+		return socketRunnables;
+	}
+
+	/* serve: Serves one more socket, of a node which connected to us again, like the others.
+	 * Called by the Acceptor; close() waits for it before it looks at the threads.
+	 */
+	private Peer serve (Socket s) throws IOException {
+		if (mode == NIO) {
+			return nioTransport.add(s);
+		} else if (mode == DUPLEX) {
+			DuplexPeer d = new DuplexPeer(s, events, batchPolicy);
+			d.start("Peer-P" + pid + "-" + duplexPeers.length);
+			duplexPeers = Arrays.copyOf(duplexPeers, duplexPeers.length + 1);
+			duplexPeers[duplexPeers.length - 1] = d;
+			return d;
+		}
+		SocketThread st = new SocketThread(s, logger, wireFormat, events);
+		st.setBatchPolicy(batchPolicy);
+		Thread t = new Thread(st);
+		t.start();
+		try {
+			if (! st.awaitReady()) {
+				throw new IOException("Socket thread for " + s.getInetAddress() + " failed to start");
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for the socket thread");
+		}
+		socketRunnables = Arrays.copyOf(socketRunnables, socketRunnables.length + 1);
+		socketRunnables[socketRunnables.length - 1] = st;
+		socketThreads = Arrays.copyOf(socketThreads, socketThreads.length + 1);
+		socketThreads[socketThreads.length - 1] = t;
+		return st;
+	}
+
+
+
+
+
+	/* startSocketThreads: This method spawns one SocketThread for each of the sockets and waits
+	 * till every thread is ready to function. The threads initialize at the same time, we only
+	 * wait for the slowest of them.
+	 */
+	private void startSocketThreads (Socket[] all) throws IOException {
+		for (int i = 0; i < all.length; i++) {
+			socketRunnables[i] = new SocketThread(all[i],logger,wireFormat,events);
+			socketRunnables[i].setBatchPolicy(batchPolicy);
+			socketThreads[i] = new Thread(socketRunnables[i]);
+			socketThreads[i].start();
+		}
+
+		/* The thread has some initialization tasks to do before it is functional. It tells us
+		 * when it is ready to roll (or gave up).
+		 */
+		for (int i = 0; i < all.length; i++) {
+			try {
+				if (! socketRunnables[i].awaitReady()) {
+					throw new IOException("Socket thread for " + all[i].getInetAddress() + " failed to start");
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for the socket threads");
+			}
+		}
+	}
+
+
+
+
+
+	/* startDuplexPeers: This method starts a reader and a writer for each of the sockets. They
+	 * need no initialization handshake either.
+	 */
+	private Peer[] startDuplexPeers (Socket[] all) throws IOException {
+		logger.log("[Transport] Serving " + all.length + " sockets on " + (DuplexPeer.usesVirtualThreads() ? "virtual" : "platform") + " threads");
+		duplexPeers = new DuplexPeer[all.length];
+		for (int i = 0; i < all.length; i++) {
+			duplexPeers[i] = new DuplexPeer(all[i], events, batchPolicy);
+			duplexPeers[i].start("Peer-P" + pid + "-" + i);
+		}
+		return duplexPeers;
+	}
+
+
+
+
+
+	/* startNioTransport: This method hands all the sockets to a single NioTransport and returns
+	 * its peers. The selector thread needs no initialization handshake, it is ready as soon as
+	 * it is created.
+	 */
+	private Peer[] startNioTransport (Socket[] all) throws IOException {
+		nioTransport = new NioTransport(all, logger, events);
+		nioTransport.setBatchPolicy(batchPolicy);
+		return nioTransport.getPeers();
+	}
+
+
+
+
+
+	/* startConnectors: Starts a Connector thread for every node which has a smaller id than us,
+	 * or for every other node if all is set. They are in config order.
+	 */
+	private Connector[] startConnectors (long deadline, boolean all) {
+		int n = 0;
+		for (int i = 0; i < config.size(); i++) {
+			if (config.getId(i) < pid || (all && config.getId(i) != pid)) {
+				n++;
+			}
+		}
+		Connector[] connectors = new Connector[n];
+		int c = 0;
+		for (int i = 0; i < config.size(); i++) {
+			/* If this node has larger id than us, then it connects to us. Unless we rejoin. */
+			if (config.getId(i) == pid || (config.getId(i) > pid && ! all)) {
+				continue;
+			}
+			connectors[c] = new Connector(i, deadline, all);
+			connectors[c].thread = new Thread(connectors[c], "Connect-P" + pid + "-P" + config.getId(i));
+			connectors[c].thread.start();
+			c++;
+		}
+		return connectors;
+	}
+
+
+
+
+
+	/* joinConnectors: Waits for all the connectors and returns their sockets. If one of them
+	 * failed, the others are closed and its error is thrown.
+	 */
+	private Socket[] joinConnectors (Connector[] connectors) throws IOException {
+		Socket[] cliSocks = new Socket[connectors.length];
+		IOException error = null;
+		for (int i = 0; i < connectors.length; i++) {
+			try {
+				connectors[i].thread.join();
+			} catch (InterruptedException e) {
+				connectors[i].thread.interrupt();
+				error = new InterruptedIOException("Interrupted while connecting to the other nodes");
+				continue;
+			}
+			if (connectors[i].error != null) {
+				error = connectors[i].error;
+			}
+			cliSocks[i] = connectors[i].socket;
+		}
+		if (error != null) {
+			for (int i = 0; i < cliSocks.length; i++) {
+				if (cliSocks[i] != null) {
+					cliSocks[i].close();
+				}
+			}
+			throw error;
+		}
+		//System.out.println(getTimestamp() + "[Middleware] Connected to " + cliSocks.length + " number of servers");
+		return cliSocks;
+	}
+
+
+
+
+
+	/* Connector: Connects to one node with a smaller id than us. Right after connecting we send
+	 * our id, so that the other side knows who we are (the port we connect from tells it nothing).
+	 * If the node is not listening yet, we try again after a wait that starts at BACKOFF_MIN and
+	 * doubles up to BACKOFF_MAX, till the deadline. When we rejoin, the node has to answer the
+	 * handshake; one which is still starting closes the connection instead.
+	 */
+	private class Connector implements Runnable {
+
+		private int index;
+		private long deadline;		// System.nanoTime() after which we give up
+		private boolean rejoin;
+		private Thread thread;
+		private Socket socket;		// set when we are connected
+		private IOException error;	// set when we gave up
+
+		Connector (int index, long deadline, boolean rejoin) {
+			this.index = index;
+			this.deadline = deadline;
+			this.rejoin = rejoin;
+		}
+
+		public void run () {
+			String host = config.getHost(index);
+			int port = config.getPort(index);
+			long backoff = BACKOFF_MIN;
+			while (true) {
+				try {
+					/* open the socket through a channel so that it can be used by NioTransport too */
+					SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, port));
+					try {
+						writeNodeId(ch, rejoin ? rejoinId(pid) : pid);
+						if (rejoin && readNodeId(ch) != config.getId(index)) {
+							throw new IOException("P" + config.getId(index) + " did not take us back");
+						}
+					} catch (EOFException e) {
+						ch.close();
+						throw new IOException("P" + config.getId(index) + " is still starting, so there is no cluster to rejoin");
+					} catch (IOException e) {
+						ch.close();
+						throw e;
+					}
+					socket = ch.socket();
+					break;
+				} catch (ConnectException ce) {
+					// probably server is not up.
+					if (System.nanoTime() + backoff * 1000000L > deadline) {
+						System.err.println("[ERROR] Server connection failed. Check if server is running");
+						error = ce;
+						return;
+					}
+					try {
+						Thread.sleep(backoff);
+					} catch (InterruptedException ie) {
+						error = new InterruptedIOException("Interrupted while connecting to P" + config.getId(index));
+						return;
+					}
+					backoff = Math.min(2 * backoff, BACKOFF_MAX);
+				} catch (IOException e) {
+					error = e;
+					return;
+				}
+			}
+			//logger.log("[Middleware] P" + pid + " is connected to P" + config.getId(index) + " (" + host + ":" + port +  ")");
+			logger.log("P" + pid + " is connected to P" + config.getId(index) + " (" + host + ":" + port +  ")");
+		}
+	}
+
+
+
+
+
+	/* startAcceptor and Acceptor: Once we are connected, a node which restarted may connect to
+	 * us again. The Acceptor takes its connection, serves it and leaves the peer for the
+	 * middleware, which finds out with takeRejoined(). It ends when close() closes the listener.
+	 */
+	private void startAcceptor () {
+		acceptor = new Thread(new Acceptor(), "Accept-P" + pid);
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private class Acceptor implements Runnable {
+
+		public void run () {
+			while (true) {
+				SocketChannel ch;
+				try {
+					ch = listener.accept();
+				} catch (IOException e) {
+					return;			// closed by close()
+				}
+				try {
+					int id = readNodeId(ch);
+					if (id >= 0) {
+						System.err.println(getTimestamp() + "[ERROR] P" + id + " connected again without rejoining");
+						ch.close();
+						continue;
+					}
+					id = rejoinId(id);
+					int index = config.indexOf(id);
+					if (index < 0 || id == pid) {
+						System.err.println(getTimestamp() + "[ERROR] Unexpected connection from P" + id);
+						ch.close();
+						continue;
+					}
+					writeNodeId(ch, pid);
+					logger.log("P" + pid + " is connected again from P" + id);
+					Peer p = serve(ch.socket());
+					synchronized (TcpTransport.this) {
+						Peer[] r = rejoined != null ? rejoined : new Peer[config.size()];
+						r[index] = p;
+						rejoined = r;
+					}
+					events.signal();
+				} catch (IOException e) {
+					System.err.println(getTimestamp() + "[ERROR] Could not serve a node which connected again");
+					e.printStackTrace();
+					try {
+						ch.close();
+					} catch (IOException ce) {
+						// nothing more we can do
+					}
+				}
+			}
+		}
+	}
+
+
+
+
+
+	/* listen: Opens the server socket on our port from the config */
+	private ServerSocketChannel listen () throws IOException {
+		for (int i = 0; i < config.size(); i++) {
+			logger.log("[P" + config.getId(i) + "] " + config.getHost(i) + ":" + config.getPort(i));
+		}
+
+		int port = config.getPort(config.indexOf(pid));
+		ServerSocketChannel s = ServerSocketChannel.open();
+		try {
+			s.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+		//logger.log("[Middleware] P" + pid + " (" + config.getHost(myIndex) + ") is listening on port " + port);
+		logger.log("P" + pid + " (" + config.getHost(config.indexOf(pid)) + ") is listening on port " + port);
+		return s;
+	}
+
+
+
+
+
+	/* createServerSockets: This method accepts a connection from every node having a larger id
+	 * than us on the listening socket and returns the array of those sockets. They are put in the
+	 * array in config order, whatever order they connect in. If they are not all there by the
+	 * deadline (System.nanoTime()) it throws a SocketTimeoutException.
+	 */
+	private Socket[] createServerSockets (ServerSocketChannel s, long deadline) throws IOException {
+
+		int num = 0;
+		for (int i = 0; i < config.size(); i++) {
+			if (config.getId(i) > pid) {
+				num++;
+			}
+		}
+
+		Socket[] servSocks = new Socket[num];
+		for (int i=0; i < num; i++) {
+			/* Accept a connection, find out who it is and put the socket in its slot. */
+			long left = (deadline - System.nanoTime()) / 1000000L;
+			if (left <= 0) {
+				throw new SocketTimeoutException("Not all the nodes connected in time");
+			}
+			s.socket().setSoTimeout((int) Math.min(left, Integer.MAX_VALUE));
+			SocketChannel ch = s.socket().accept().getChannel();
+			int id = readNodeId(ch);
+			if (id < 0) {
+				System.err.println(getTimestamp() + "[ERROR] P" + rejoinId(id) + " wants to rejoin, but we are still starting");
+				ch.close();
+				i--;
+				continue;
+			}
+			int slot = serverSlot(id);
+			if (slot < 0 || servSocks[slot] != null) {
+				System.err.println(getTimestamp() + "[ERROR] Unexpected connection from P" + id);
+				ch.close();
+				i--;
+				continue;
+			}
+			servSocks[slot] = ch.socket();
+			String c = servSocks[slot].getInetAddress().toString().replace('/',' ').trim();
+			//logger.log("[Middleware] P" + pid + " is connected from P"+ id + " (" + c + ")");
+			logger.log("P" + pid + " is connected from P"+ id + " (" + c + ")");
+		}
+		//System.out.println(getTimestamp() + "[Middleware] Done creating server sockets");
+		s.socket().setSoTimeout(0);
+		return servSocks;
+	}
+
+
+
+
+
+	/* serverSlot: Position of the node with this id among the nodes which connect to us
+	 * (those with larger ids), in config order. -1 if it is not one of them.
+	 */
+	private int serverSlot (int id) {
+		int index = config.indexOf(id);
+		if (id <= pid || index < 0) {
+			return -1;
+		}
+		int slot = 0;
+		for (int i = 0; i < index; i++) {
+			if (config.getId(i) > pid) {
+				slot++;
+			}
+		}
+		return slot;
+	}
+
+
+
+
+
+	/* writeNodeId and readNodeId: The handshake on a new connection. The connecting node sends
+	 * its id as 4 bytes before anything else goes over the socket. A rejoining node sends
+	 * rejoinId() of its id instead, and a running node answers with its own id.
+	 */
+
+	private static void writeNodeId (SocketChannel ch, int id) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		buf.putInt(id);
+		buf.flip();
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+	}
+
+	/* rejoinId: Ids are not negative, so a negative one marks a rejoin. Its own inverse. */
+	private static int rejoinId (int id) {
+		return -1 - id;
+	}
+
+	private static int readNodeId (SocketChannel ch) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf) < 0) {
+				throw new EOFException("Connection closed during handshake");
+			}
+		}
+		buf.flip();
+		return buf.getInt();
+	}
+}
@@ -0,0 +1,37 @@
+/* This interface is how the middleware gets connected to the other nodes of the cluster. Once
+ * connected, the middleware only talks to the Peers the transport gave it, so it does not care
+ * how the messages get to the other side:
+ * 		TcpTransport		sockets to nodes in other processes (default)
+ * 		LoopbackTransport	in-memory queues to nodes in the same JVM
+ * Every DistributionLayer has a transport of its own, set with DistributionLayer.setTransport()
+ * before the middleware thread is started. All the nodes of a cluster use the same kind.
+ */
+
+package middleware;
+
+import java.io.IOException;
+
+public interface Transport {
+
+	/* connect: Connects node pid to every other node of the config and returns their peers by
+	 * position in the config (null at our own position). Blocks till all of them are connected.
+	 * events has to be signalled whenever a message arrives from any of the peers.
+	 */
+	Peer[] connect (int pid, ClusterConfig config, LogWriter logger, EventSignal events) throws IOException;
+
+	/* rejoin: Like connect(), for a node which restarted while the others kept running: it
+	 * connects to every one of them itself. A transport which can not do that throws.
+	 */
+	Peer[] rejoin (int pid, ClusterConfig config, LogWriter logger, EventSignal events) throws IOException;
+
+	/* takeRejoined: Peers of the nodes which connected to us again since the last call, by
+	 * position in the config (null elsewhere), or null if none did. events is signalled when one
+	 * does.
+	 */
+	Peer[] takeRejoined ();
+
+	/* close: Sends whatever is still queued on the peers and closes the connections. Messages
+	 * which arrived before can still be taken from the peers afterwards.
+	 */
+	void close ();
+}
@@ -0,0 +1,103 @@
+/* This class merges the updates of one instrument before they are ordered. An update is an
+ * additive delta, so several of them applied one after the other have the same effect as their
+ * sum applied once, and the sum costs one round of the ordering protocol instead of one per update.
+ * The first update of a merge opens a window; updates submitted till it closes are added to it.
+ * The merge is closed when the window is over or when it holds maxMerge updates, whichever comes
+ * first. A window of 0 only merges the updates which were queued together.
+ * The merged update keeps the deltas it is made of (Message.getParts()), so every node can log
+ * who contributed what, and the futures of all of them complete when it is delivered.
+ * It is used by the DomainWorker of the instrument only, so it is not thread-safe.
+ */
+
+package middleware;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+
+class UpdateCoalescer {
+
+	private long windowNanos;
+	private int maxMerge;
+	private ArrayList<Message> open;	// updates in the current merge, in the order they were submitted
+	private ArrayList<CompletableFuture<Message>> openFutures;
+	private long deadline;			// System.nanoTime() at which the current merge closes
+
+
+
+	UpdateCoalescer (long windowMillis, int maxMerge) {
+		if (windowMillis < 0 || maxMerge < 1 || maxMerge > MessageCodec.MAX_PARTS) {
+			throw new IllegalArgumentException("Invalid coalescing: window " + windowMillis + "ms, at most " + maxMerge + " updates");
+		}
+		this.windowNanos = windowMillis * 1000000;
+		this.maxMerge = maxMerge;
+		open = new ArrayList<Message>();
+		openFutures = new ArrayList<CompletableFuture<Message>>();
+	}
+
+
+
+
+
+	/* add: Adds an update to the current merge, or opens one. Returns true if the merge is
+	 * full and has to be taken now.
+	 */
+	boolean add (Message m, CompletableFuture<Message> f, long now) {
+		if (open.isEmpty()) {
+			deadline = now + windowNanos;
+		}
+		open.add(m);
+		openFutures.add(f);
+		return open.size() >= maxMerge;
+	}
+
+	/* isDue: True if there is a merge and its window is over */
+	boolean isDue (long now) {
+		return ! open.isEmpty() && now - deadline >= 0;
+	}
+
+	boolean isEmpty () {
+		return open.isEmpty();
+	}
+
+	/* size: Number of updates in the current merge */
+	int size () {
+		return open.size();
+	}
+
+	/* getDeadline: When the current merge closes. Only meaningful if there is one. */
+	long getDeadline () {
+		return deadline;
+	}
+
+
+
+
+
+	/* take: Closes the current merge and returns the update to submit. The futures of the updates
+	 * in it are added to 'futures' in the order of the parts. A merge of one update is that update.
+	 */
+	Message take (Collection<CompletableFuture<Message>> futures) {
+		futures.addAll(openFutures);
+		Message first = open.get(0);
+		Message merged = first;
+		if (open.size() > 1) {
+			int[] sum = new int[2];
+			int[] parts = new int[2 * open.size()];
+			for (int i = 0; i < open.size(); i++) {
+				int[] u = open.get(i).getUpdate();
+				sum[0] += u[0];
+				sum[1] += u[1];
+				parts[2 * i] = u[0];
+				parts[2 * i + 1] = u[1];
+			}
+			merged = new Message('u', 0, first.getSender());
+			merged.setInstrument(first.getInstrument());
+			merged.setUpdate(sum);
+			merged.setParts(parts);
+		}
+		open.clear();
+		openFutures.clear();
+		return merged;
+	}
+}
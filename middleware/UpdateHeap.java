@@ -0,0 +1,163 @@
+/* This class is the priority queue of the ordering engines: a binary min-heap of updates ordered by
+ * their timestamps (time, sender). The keys are kept in primitive arrays beside the messages, so
+ * the comparisons of sifting up and down read two arrays and never touch a Message or a Comparator,
+ * and nothing is boxed. The messages only move along with their keys.
+ * It grows as needed and never shrinks. It is not thread-safe; every engine has its own.
+ */
+
+package middleware;
+
+import java.util.Arrays;
+
+public class UpdateHeap {
+
+	private long[] times;
+	private int[] senders;
+	private Message[] messages;
+	private int size;
+
+
+
+	public UpdateHeap (int capacity) {
+		times = new long[capacity];
+		senders = new int[capacity];
+		messages = new Message[capacity];
+		size = 0;
+	}
+
+
+
+
+
+	public void add (Message m) {
+		if (size == times.length) {
+			grow();
+		}
+		long t = m.getTimestamp();
+		int s = m.getSender();
+		int i = size++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (! less(t, s, times[parent], senders[parent])) {
+				break;
+			}
+			move(parent, i);
+			i = parent;
+		}
+		set(i, t, s, m);
+	}
+
+	/* poll: Removes and returns the update with the smallest timestamp, null if there is none */
+	public Message poll () {
+		if (size == 0) {
+			return null;
+		}
+		Message head = messages[0];
+		size--;
+		long t = times[size];
+		int s = senders[size];
+		Message m = messages[size];
+		messages[size] = null;
+		if (size > 0) {
+			siftDown(0, t, s, m);
+		}
+		return head;
+	}
+
+	/* remove: Takes out the updates of this sender stamped after 'from' and up to 'to' and returns
+	 * how many there were. Rarely needed, so it simply rebuilds the heap in linear time.
+	 */
+	public int remove (int sender, long from, long to) {
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (senders[i] != sender || times[i] <= from || times[i] > to) {
+				move(i, n++);
+			}
+		}
+		int removed = size - n;
+		for (int i = n; i < size; i++) {
+			messages[i] = null;
+		}
+		size = n;
+		for (int i = (size >>> 1) - 1; i >= 0; i--) {
+			siftDown(i, times[i], senders[i], messages[i]);
+		}
+		return removed;
+	}
+
+	/* peek, peekTime and peekSender: The update with the smallest timestamp and its key. Only
+	 * meaningful if the heap is not empty.
+	 */
+	public Message peek () {
+		return messages[0];
+	}
+
+	public long peekTime () {
+		return times[0];
+	}
+
+	public int peekSender () {
+		return senders[0];
+	}
+
+	/* get: The update at position i (0 <= i < size()), in no particular order. For walking over
+	 * all of them without taking them out.
+	 */
+	public Message get (int i) {
+		return messages[i];
+	}
+
+	public int size () {
+		return size;
+	}
+
+	public boolean isEmpty () {
+		return size == 0;
+	}
+
+
+
+
+
+	/* siftDown: Puts (t, s, m) in the hole at i and moves it down to its place */
+	private void siftDown (int i, long t, int s, Message m) {
+		int half = size >>> 1;		// nodes below this have a child
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < size && less(times[right], senders[right], times[child], senders[child])) {
+				child = right;
+			}
+			if (! less(times[child], senders[child], t, s)) {
+				break;
+			}
+			move(child, i);
+			i = child;
+		}
+		set(i, t, s, m);
+	}
+
+	/* less: The order of LogicalClock.compare() */
+	private static boolean less (long t1, int s1, long t2, int s2) {
+		return t1 < t2 || (t1 == t2 && s1 < s2);
+	}
+
+	private void move (int from, int to) {
+		times[to] = times[from];
+		senders[to] = senders[from];
+		messages[to] = messages[from];
+	}
+
+	private void set (int i, long t, int s, Message m) {
+		times[i] = t;
+		senders[i] = s;
+		messages[i] = m;
+	}
+
+	private void grow () {
+		int n = Math.max(1, 2 * times.length);	// a heap made with capacity 0 grows too
+		times = Arrays.copyOf(times, n);
+		senders = Arrays.copyOf(senders, n);
+		messages = Arrays.copyOf(messages, n);
+	}
+}
@@ -0,0 +1,502 @@
+/* This class is the write-ahead log of the updates a node has delivered, so that a restarted node
+ * gets its state back without the other nodes. It lives in a directory of its own:
+ * 		wal-<first index>.seg		segments of the log, memory mapped
+ * 		snapshot-<index>.snap		the state of the application after update <index>
+ * Every delivered update gets the next index (starting at 1) and one fixed size record:
+ * 		index (8) | timestamp (8) | sender (4) | instrument (4) | update[0] (4) | update[1] (4) | crc32 (4)
+ * Records are appended to the mapped segment; commit() forces everything appended since the last
+ * commit to disk at once, so a whole batch of deliveries costs one sync (group commit). A full
+ * segment is closed and a new one is started.
+ * snapshot() writes the application state and the logical time of some index to a new snapshot
+ * file and then deletes the older snapshots and every segment which holds nothing after it.
+ * open() recovers: it loads the latest snapshot and reads the records after it (the tail). The
+ * log ends at the first record which is torn or out of sequence; what was written after it is wiped.
+ * A node which rejoins a running cluster gets the log of another node instead: checkpoint() gives
+ * the latest snapshot and the updates logged after it, install() makes them the whole log.
+ * The middleware appends and commits from its own thread, the application takes snapshots from
+ * its thread. The methods are synchronized for that.
+ */
+
+package middleware;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class UpdateLog {
+
+	public static final int RECORD_SIZE = 36;
+	public static final int DEFAULT_SEGMENT_SIZE = RECORD_SIZE * 32768;
+
+	private static final int SNAPSHOT_MAGIC = 0x534e4150;		// "SNAP"
+
+	/* What checkpoint() gives and install() takes */
+	public static class Checkpoint {
+		public long index;		// of the snapshot, 0 if there is none
+		public long time;		// logical time of that update, -1 if there is none
+		public int[] state;		// null if there is no snapshot
+		public ArrayList<Message> updates = new ArrayList<Message>();	// logged after it, in order
+	}
+
+	private File dir;
+	private int segmentSize;
+	private ArrayList<Long> segments;	// first index of every segment on disk, ascending
+	private MappedByteBuffer current;	// the segment we append to
+	private long nextIndex;			// index of the next record
+	private int dirtyFrom;			// position in current from where it is not forced yet
+	private int[] latestState;		// of the latest snapshot, null if there is none
+	private CRC32 crc;
+
+	// what open() recovered
+	private long snapshotIndex;
+	private long snapshotTime;
+	private int[] snapshotState;
+	private ArrayList<Message> tail;
+	private long recoveredTime;
+
+
+
+	private UpdateLog (File dir, int segmentSize) {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		segments = new ArrayList<Long>();
+		crc = new CRC32();
+		snapshotIndex = 0;
+		snapshotTime = -1;
+		snapshotState = null;
+		latestState = null;
+		tail = new ArrayList<Message>();
+		recoveredTime = -1;
+	}
+
+
+
+
+
+	/* open: Opens the log in this directory (it is created if needed) and recovers whatever is
+	 * in there. An empty directory gives an empty log.
+	 */
+	public static UpdateLog open (File dir) throws IOException {
+		return open(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public static UpdateLog open (File dir, int segmentSize) throws IOException {
+		if (segmentSize < RECORD_SIZE || segmentSize % RECORD_SIZE != 0) {
+			throw new IllegalArgumentException("Segment size has to be a multiple of " + RECORD_SIZE);
+		}
+		if (! dir.isDirectory() && ! dir.mkdirs()) {
+			throw new IOException("Could not create log directory " + dir);
+		}
+		UpdateLog log = new UpdateLog(dir, segmentSize);
+		log.recover();
+		return log;
+	}
+
+
+
+
+
+	/* Pretty much self-explanatory methods. The state and the tail are what open() recovered,
+	 * the snapshot index and time follow later snapshots.
+	 */
+
+	public long getSnapshotIndex () {
+		return snapshotIndex;
+	}
+
+	public long getSnapshotTime () {
+		return snapshotTime;
+	}
+
+	/* null if there is no snapshot */
+	public int[] getSnapshotState () {
+		return snapshotState;
+	}
+
+	/* the updates after the snapshot, in the order they were delivered */
+	public List<Message> getRecoveredTail () {
+		return Collections.unmodifiableList(tail);
+	}
+
+	/* latest logical time in the snapshot and the tail, -1 if there is none */
+	public long getRecoveredTime () {
+		return recoveredTime;
+	}
+
+	public synchronized long getLastIndex () {
+		return nextIndex - 1;
+	}
+
+
+
+
+
+	/* append: Adds a delivered update to the log and returns its index. It is not on disk
+	 * before the next commit().
+	 */
+	public synchronized long append (Message m) throws IOException {
+		if (current == null) {
+			throw new IOException("Update log is closed");
+		}
+		if (! current.hasRemaining()) {
+			force();
+			startSegment(nextIndex);
+		}
+		int[] update = m.getUpdate();
+		int pos = current.position();
+		current.putLong(nextIndex);
+		current.putLong(m.getTimestamp());
+		current.putInt(m.getSender());
+		current.putInt(m.getInstrument());
+		current.putInt(update != null ? update[0] : 0);
+		current.putInt(update != null ? update[1] : 0);
+		current.putInt(checksum(current, pos));
+		return nextIndex++;
+	}
+
+
+
+
+
+	/* commit: Forces every record appended since the last commit to disk */
+	public synchronized void commit () throws IOException {
+		if (current != null) {
+			force();
+		}
+	}
+
+
+
+
+
+	/* snapshot: Saves the application state after update 'index' together with the logical time
+	 * of that update, then drops the log up to there. The snapshot file is written under a
+	 * temporary name and renamed, so a crash leaves either the old or the new snapshot.
+	 */
+	public synchronized void snapshot (long index, long time, int[] state) throws IOException {
+		if (index > nextIndex - 1) {
+			throw new IllegalArgumentException("Snapshot of update " + index + " which is not in the log");
+		}
+		if (index <= snapshotIndex) {
+			return;
+		}
+		writeSnapshot(index, time, state);
+
+		long old = snapshotIndex;
+		snapshotIndex = index;
+		snapshotTime = time;
+		latestState = state.clone();
+		new File(dir, snapshotName(old)).delete();
+
+		/* A segment can go if the next one starts at or before the first index we still need */
+		while (segments.size() > 1 && segments.get(1) <= index + 1) {
+			new File(dir, segmentName(segments.remove(0))).delete();
+		}
+	}
+
+	private void writeSnapshot (long index, long time, int[] state) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(28 + 4 * state.length);
+		buf.putInt(SNAPSHOT_MAGIC);
+		buf.putLong(index);
+		buf.putLong(time);
+		buf.putInt(state.length);
+		for (int i = 0; i < state.length; i++) {
+			buf.putInt(state[i]);
+		}
+		crc.reset();
+		crc.update(buf.array(), 0, buf.position());
+		buf.putInt((int) crc.getValue());
+		buf.flip();
+
+		File tmp = new File(dir, "snapshot.tmp");
+		FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			while (buf.hasRemaining()) {
+				ch.write(buf);
+			}
+			ch.force(true);
+		} finally {
+			ch.close();
+		}
+		Files.move(tmp.toPath(), new File(dir, snapshotName(index)).toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+
+
+
+
+	/* checkpoint: For a node which rejoins the cluster: the latest snapshot and every update
+	 * logged after it, as they are right now. How much that is depends on how often snapshots are
+	 * taken, not on how long the log has been running.
+	 */
+	public synchronized Checkpoint checkpoint () throws IOException {
+		if (current == null) {
+			throw new IOException("Update log is closed");
+		}
+		Checkpoint c = new Checkpoint();
+		c.index = snapshotIndex;
+		c.time = latestState != null ? snapshotTime : -1;
+		c.state = latestState != null ? latestState.clone() : null;
+		for (int s = 0; s < segments.size(); s++) {
+			long first = segments.get(s);
+			long end = s == segments.size() - 1 ? nextIndex : segments.get(s + 1);
+			if (end <= snapshotIndex + 1) {
+				continue;
+			}
+			ByteBuffer b = s == segments.size() - 1 ? current : map(first);
+			for (long index = Math.max(first, snapshotIndex + 1); index < end; index++) {
+				c.updates.add(record(b, (int) ((index - first) * RECORD_SIZE)));
+			}
+		}
+		return c;
+	}
+
+
+
+
+
+	/* install: Replaces the whole log with the checkpoint of another node: its snapshot (if it has
+	 * one) and the updates after it, which are committed. What we logged before is of no use after
+	 * the others went on without us. The recovered state and tail become those of the checkpoint.
+	 */
+	public synchronized void install (Checkpoint c) throws IOException {
+		if (current != null) {
+			force();
+			current = null;
+		}
+		String[] names = dir.list();
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].endsWith(".seg") || names[i].endsWith(".snap") || names[i].equals("snapshot.tmp")) {
+				new File(dir, names[i]).delete();
+			}
+		}
+		segments.clear();
+		if (c.state != null) {
+			writeSnapshot(c.index, c.time, c.state);
+		}
+		startSegment(c.index + 1);
+		for (int i = 0; i < c.updates.size(); i++) {
+			append(c.updates.get(i));
+		}
+		force();
+
+		snapshotIndex = c.index;
+		snapshotTime = c.state != null ? c.time : -1;
+		snapshotState = c.state;
+		latestState = c.state;
+		tail = new ArrayList<Message>(c.updates);
+		recoveredTime = snapshotTime;
+		for (int i = 0; i < tail.size(); i++) {
+			recoveredTime = Math.max(recoveredTime, tail.get(i).getTimestamp());
+		}
+	}
+
+
+
+
+
+	/* close: Commits and closes the log. The mapping goes away with the buffer. */
+	public synchronized void close () throws IOException {
+		if (current != null) {
+			force();
+			current = null;
+		}
+	}
+
+
+
+
+
+	/* recover: Loads the latest readable snapshot, then reads the segments from the one which
+	 * holds the update after it. The first bad record ends the log; whatever follows it in its
+	 * segment is zeroed and later segments are deleted, so nothing stale can show up after new records.
+	 */
+	private void recover () throws IOException {
+		ArrayList<Long> snapshots = new ArrayList<Long>();
+		String[] names = dir.list();
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].startsWith("wal-") && names[i].endsWith(".seg")) {
+				segments.add(Long.parseLong(names[i].substring(4, names[i].length() - 4)));
+			} else if (names[i].startsWith("snapshot-") && names[i].endsWith(".snap")) {
+				snapshots.add(Long.parseLong(names[i].substring(9, names[i].length() - 5)));
+			}
+		}
+		Collections.sort(segments);
+		Collections.sort(snapshots);
+		for (int i = snapshots.size() - 1; i >= 0 && snapshotState == null; i--) {
+			readSnapshot(snapshots.get(i));
+		}
+		latestState = snapshotState;
+		recoveredTime = snapshotTime;
+
+		// segments which end before the snapshot are not needed any more
+		while (segments.size() > 1 && segments.get(1) <= snapshotIndex + 1) {
+			new File(dir, segmentName(segments.remove(0))).delete();
+		}
+		if (segments.isEmpty()) {
+			startSegment(snapshotIndex + 1);
+			return;
+		}
+		if (segments.get(0) > snapshotIndex + 1) {
+			throw new IOException("Update log in " + dir + " misses the updates after " + snapshotIndex);
+		}
+
+		nextIndex = segments.get(0);
+		int s = 0;
+		while (true) {
+			current = map(segments.get(s));
+			boolean ok = readSegment();
+			if (! ok || s == segments.size() - 1 || segments.get(s + 1) != nextIndex) {
+				break;
+			}
+			s++;
+		}
+
+		/* wipe what was written after the end of the log. Records are always written one after
+		 * the other and wiped like this, so the first one which was never written ends it.
+		 */
+		int end = current.position();
+		int pos = end;
+		while (pos + RECORD_SIZE <= segmentSize && current.getLong(pos) != 0) {
+			for (int i = 0; i < RECORD_SIZE; i += 4) {
+				current.putInt(pos + i, 0);
+			}
+			pos += RECORD_SIZE;
+		}
+		if (pos > end) {
+			current.force(end, pos - end);
+		}
+		dirtyFrom = end;
+		while (segments.size() > s + 1) {
+			new File(dir, segmentName(segments.remove(s + 1))).delete();
+		}
+		if (nextIndex <= snapshotIndex) {
+			throw new IOException("Update log in " + dir + " ends at " + (nextIndex - 1) + " before its snapshot " + snapshotIndex);
+		}
+	}
+
+
+
+
+
+	/* readSegment: Reads the records of the current segment which continue the sequence. Those
+	 * after the snapshot go to the tail. Leaves the position after the last good record and
+	 * returns true if the whole segment was good.
+	 */
+	private boolean readSegment () {
+		while (current.remaining() >= RECORD_SIZE) {
+			int pos = current.position();
+			long index = current.getLong(pos);
+			if (index != nextIndex || current.getInt(pos + RECORD_SIZE - 4) != checksum(current, pos)) {
+				return false;
+			}
+			if (index > snapshotIndex) {
+				Message m = record(current, pos);
+				tail.add(m);
+				recoveredTime = Math.max(recoveredTime, m.getTimestamp());
+			}
+			current.position(pos + RECORD_SIZE);
+			nextIndex++;
+		}
+		return true;
+	}
+
+
+
+
+
+	/* record: The update in the record at pos */
+	private static Message record (ByteBuffer b, int pos) {
+		Message m = new Message('u', b.getLong(pos + 8), b.getInt(pos + 16));
+		m.setInstrument(b.getInt(pos + 20));
+		int[] update = new int[2];
+		update[0] = b.getInt(pos + 24);
+		update[1] = b.getInt(pos + 28);
+		m.setUpdate(update);
+		return m;
+	}
+
+	private void readSnapshot (long index) {
+		try {
+			byte[] b = Files.readAllBytes(new File(dir, snapshotName(index)).toPath());
+			ByteBuffer buf = ByteBuffer.wrap(b);
+			if (b.length < 28 || buf.getInt() != SNAPSHOT_MAGIC) {
+				return;
+			}
+			long idx = buf.getLong();
+			long time = buf.getLong();
+			int n = buf.getInt();
+			if (n < 0 || b.length != 28 + 4 * n || idx != index) {
+				return;
+			}
+			int[] state = new int[n];
+			for (int i = 0; i < n; i++) {
+				state[i] = buf.getInt();
+			}
+			crc.reset();
+			crc.update(b, 0, b.length - 4);
+			if (buf.getInt() != (int) crc.getValue()) {
+				return;
+			}
+			snapshotIndex = idx;
+			snapshotTime = time;
+			snapshotState = state;
+		} catch (IOException e) {
+			System.err.println("[ERROR] Could not read snapshot " + index + " in " + dir);
+		}
+	}
+
+
+
+
+
+	private void startSegment (long firstIndex) throws IOException {
+		current = map(firstIndex);
+		segments.add(firstIndex);
+		nextIndex = firstIndex;
+		dirtyFrom = 0;
+	}
+
+	private MappedByteBuffer map (long firstIndex) throws IOException {
+		FileChannel ch = FileChannel.open(new File(dir, segmentName(firstIndex)).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			return ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);	// stays valid after close
+		} finally {
+			ch.close();
+		}
+	}
+
+	private void force () {
+		int pos = current.position();
+		if (pos > dirtyFrom) {
+			current.force(dirtyFrom, pos - dirtyFrom);
+			dirtyFrom = pos;
+		}
+	}
+
+	/* checksum: crc32 of the record at pos, without its last 4 bytes (the crc) */
+	private int checksum (ByteBuffer b, int pos) {
+		ByteBuffer r = b.duplicate();
+		r.limit(pos + RECORD_SIZE - 4);
+		r.position(pos);
+		crc.reset();
+		crc.update(r);
+		return (int) crc.getValue();
+	}
+
+	private static String segmentName (long firstIndex) {
+		return String.format("wal-%020d.seg", firstIndex);
+	}
+
+	private static String snapshotName (long index) {
+		return String.format("snapshot-%020d.snap", index);
+	}
+}